@@ -15,6 +15,8 @@ public abstract class BaseGenerationManager {
 
 	protected SimpleMikuPad app;
 	protected volatile boolean isCancelled = false;
+	protected volatile int requestedAlternatives = 0;
+	protected volatile double alternativesThreshold = Double.MAX_VALUE;
 
 	public BaseGenerationManager(SimpleMikuPad app) {
 		this.app = app;
@@ -45,6 +47,7 @@ public abstract class BaseGenerationManager {
 		app.getGenerateButton().setEnabled(false);
 		app.getCancelButton().setEnabled(true);
 		app.getPromptText().setEditable(false);
+		app.getVersionHistory().beforeGeneration();
 		app.getTokenManager().clearTokenColoring();
 
 		// Begin compound change for entire generation
@@ -58,8 +61,11 @@ public abstract class BaseGenerationManager {
 		Session currentSession = app.getSessionManager().getCurrentSession();
 		Settings settings = currentSession.getSettings();
 
-		ProbabilitySettings probabilitySettings = new ProbabilitySettings(Constants.DEFAULT_TOKEN_ALTERNATIVES_COUNT,
+		ProbabilitySettings probabilitySettings = new ProbabilitySettings(getRequestedProbabilityCount(settings),
 				false, false, 0);
+		requestedAlternatives = settings.isTokenAlternativesEnabled() ? settings.getTokenAlternatives() : 0;
+		alternativesThreshold = settings.isAlternativesThresholdEnabled() ? settings.getAlternativesThreshold()
+				: Double.MAX_VALUE;
 
 		CompletableFuture.runAsync(() -> {
 			try {
@@ -94,12 +100,14 @@ public abstract class BaseGenerationManager {
 				processStreamingResponse(response);
 
 				app.getDisplay().asyncExec(() -> {
+					// End compound change when generation completes, before the session (and its undo history) is saved
+					app.getUndoManager().endCompoundChange();
 					if (!isCancelled) {
-						SessionUIManager sessionUI = new SessionUIManager(app);
-						sessionUI.saveCurrentSessionState();
+						app.getVersionHistory().afterGeneration();
+						app.getSessionUIManager().saveCurrentSessionState();
+					} else {
+						app.getSessionUIManager().autoSaveSessionState();
 					}
-					// End compound change when generation completes
-					app.getUndoManager().endCompoundChange();
 					resetButtons();
 				});
 
@@ -108,6 +116,7 @@ public abstract class BaseGenerationManager {
 					app.updateStatus("Error: " + ex.getMessage());
 					// End compound change on error
 					app.getUndoManager().endCompoundChange();
+					app.getSessionUIManager().autoSaveSessionState();
 					resetButtons();
 				});
 			}
@@ -120,6 +129,7 @@ public abstract class BaseGenerationManager {
 		app.getPromptText().setEditable(true);
 		// End compound change on cancellation
 		app.getUndoManager().endCompoundChange();
+		app.getSessionUIManager().autoSaveSessionState();
 		resetButtons();
 	}
 
@@ -155,7 +165,9 @@ public abstract class BaseGenerationManager {
 					
 					if (tokenText != null && !tokenText.isEmpty()) {
 						double probability = getTokenProbability(tokenLogprobs);
-						List<TokenManager.TokenAlternative> alternatives = getTokenAlternatives(tokenLogprobs);
+						List<TokenManager.TokenAlternative> alternatives = shouldKeepAlternatives(probability)
+								? getTokenAlternatives(tokenLogprobs)
+								: new ArrayList<>();
 
 						app.getDisplay().asyncExec(() -> {
 							if (!isCancelled && !app.getPromptText().isDisposed()) {
@@ -178,6 +190,29 @@ public abstract class BaseGenerationManager {
 		}
 	}
 
+	/**
+	 * Returns the n_probs value to request: nothing while token coloring is
+	 * hidden, just the sampled token when alternatives are disabled, and the
+	 * configured number of alternatives otherwise.
+	 */
+	protected int getRequestedProbabilityCount(Settings settings) {
+		if (!app.getTokenManager().isColoringEnabled()) {
+			return 0;
+		}
+		if (!settings.isTokenAlternativesEnabled()) {
+			return 1;
+		}
+		return Math.max(1, settings.getTokenAlternatives());
+	}
+
+	/**
+	 * Alternatives are only kept when requested and, if a threshold is set,
+	 * only for tokens sampled below it. Unknown (NaN) probabilities keep none.
+	 */
+	protected boolean shouldKeepAlternatives(double probability) {
+		return requestedAlternatives > 0 && probability < alternativesThreshold;
+	}
+
 	protected JsonObject buildRequest(String prompt, Settings settings,
 			ProbabilitySettings probSettings) {
 		JsonObject request = settings.toJson();
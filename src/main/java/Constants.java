@@ -95,6 +95,10 @@ public class Constants {
     public static final int DRY_ALLOWED_LENGTH_MAX = 20;
     public static final int DRY_PENALTY_LAST_N_MIN = -1;
     public static final int DRY_PENALTY_LAST_N_MAX = 4096;
+    public static final int TOKEN_ALTERNATIVES_MIN = 1;
+    public static final int TOKEN_ALTERNATIVES_MAX = 20;
+    public static final double ALTERNATIVES_THRESHOLD_MIN = 0.0;
+    public static final double ALTERNATIVES_THRESHOLD_MAX = 1.0;
     
     // Default enabled states
     public static final boolean DEFAULT_SEED_ENABLED = false;
@@ -114,6 +118,8 @@ public class Constants {
     public static final boolean DEFAULT_XTC_ENABLED = false;
     public static final boolean DEFAULT_DRY_ENABLED = false;
     public static final boolean DEFAULT_MAX_TOKENS_ENABLED = false;
+    public static final boolean DEFAULT_TOKEN_ALTERNATIVES_ENABLED = true;
+    public static final boolean DEFAULT_ALTERNATIVES_THRESHOLD_ENABLED = false;
     
     // Advanced settings defaults
     public static final String DEFAULT_GRAMMAR = "";
@@ -136,6 +142,36 @@ public class Constants {
     public static final String SESSION_DISPLAY_DATE_FORMAT = "dd MMM yyyy HH:mm";
     public static final String MIKUPAD_DIR_NAME = ".simple-mikupad";
     public static final String SESSIONS_FILE_NAME = "sessions.json";
+    public static final String SESSIONS_DIR_NAME = "sessions";
+    public static final String SESSION_INDEX_FILE_NAME = "index.json";
+    public static final String SESSION_FILE_EXTENSION = ".json";
+    public static final String SESSION_ARCHIVE_EXTENSION = ".zip";
+    public static final String MIGRATED_FILE_SUFFIX = ".migrated";
+    public static final long SESSION_WRITE_TIMEOUT_MS = 5000;
+    public static final int MAX_LOADED_SESSIONS = 16; // Sessions kept in memory besides the index
+    public static final int JOURNAL_FLUSH_INTERVAL_MS = 200; // Edits lost at most in a crash
+    public static final long JOURNAL_COMPACT_THRESHOLD_BYTES = 1024L * 1024;
+    public static final int SESSION_SEARCH_DELAY_MS = 150; // Pause in typing before the search runs
+    public static final int SESSION_PICKER_WIDTH = 520;
+    public static final int SESSION_PICKER_HEIGHT = 360;
+    public static final boolean SESSION_COMPRESSION_ENABLED = true;
+    public static final int SESSION_COMPRESSION_THRESHOLD_CHARS = 32 * 1024; // Prompt length from which session files are gzipped
+    public static final int SESSION_IO_BUFFER_SIZE = 64 * 1024;
+    public static final int AUTO_SAVE_DELAY_MS = 500; // Quiet time after the last edit
+    public static final int AUTO_SAVE_MAX_WAIT_MS = 5000; // Longest a change waits during continuous edits
+    public static final String TOKENS_DIR_NAME = "tokens";
+    public static final String TOKENS_FILE_EXTENSION = ".tokens";
+    public static final long TOKENS_WRITE_TIMEOUT_MS = 5000;
+    public static final String UNDO_DIR_NAME = "undo";
+    public static final String UNDO_FILE_EXTENSION = ".undo";
+    public static final long UNDO_WRITE_TIMEOUT_MS = 5000;
+    public static final String JOURNAL_DIR_NAME = "journal";
+    public static final String JOURNAL_FILE_EXTENSION = ".journal";
+    public static final String SEARCH_DIR_NAME = "search";
+    public static final String VERSIONS_DIR_NAME = "versions";
+    public static final String VERSIONS_FILE_EXTENSION = ".versions";
+    public static final long VERSIONS_WRITE_TIMEOUT_MS = 5000;
+    public static final String SEARCH_FILE_EXTENSION = ".idx";
     public static final String DEFAULT_SESSION_NAME = "Default Session";
     public static final String DEFAULT_SESSION_PROMPT = "<|im_start|>system\n"
     		+ "You are a talented writing assistant.<|im_end|>\n"
@@ -160,12 +196,32 @@ public class Constants {
     public static final int COLOR_GREEN_HIGH_RANGE = 100;
     public static final int PERCENTAGE_MULTIPLIER = 100;
     
+    // Undo history
+    public static final long UNDO_HISTORY_BYTE_BUDGET = 64L * 1024 * 1024;
+    public static final long UNDO_COMPRESSION_THRESHOLD_BYTES = 64L * 1024;
+    public static final int UNDO_LOG_COMPACT_FACTOR = 2;
+    public static final long UNDO_LOG_COMPACT_SLACK_BYTES = 256L * 1024;
+    
+    // Versions kept at generation boundaries
+    public static final int MAX_VERSIONS = 50;
+    public static final int VERSION_KEYFRAME_INTERVAL = 10; // At most this many deltas are replayed to restore a version
+    
+    // Token render modes
+    public static final int RENDER_MODE_PROBABILITY = 0;
+    public static final int RENDER_MODE_BOUNDARIES = 1;
+    public static final int RENDER_MODE_ENTROPY = 2;
+    public static final int RENDER_MODE_RANK = 3;
+    public static final String[] RENDER_MODE_NAMES = {"Probability", "Token Boundaries", "Entropy", "Rank"};
+    
     // Tooltip positioning
     public static final int TOOLTIP_OFFSET_X = 10;
     public static final int TOOLTIP_OFFSET_Y = 10;
+    public static final int TOOLTIP_UPDATE_DELAY_MS = 16; // At most one tooltip layout per frame
+    public static final int TOOLTIP_CACHE_SIZE = 256;
     
     // API constants
     public static final int DEFAULT_TOKEN_ALTERNATIVES_COUNT = 10;
+    public static final double DEFAULT_ALTERNATIVES_THRESHOLD = 0.5;
            
     // Instruction template constants
     public static final String CUSTOM_TEMPLATE_NAME = "Custom";
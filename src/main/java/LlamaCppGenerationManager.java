@@ -73,14 +73,12 @@ public class LlamaCppGenerationManager extends BaseGenerationManager {
 	                    int tokenPosition = remainingText.indexOf(tokenText);
 	                    if (tokenPosition >= 0) {
 	                        final int startOffset = currentOffset + tokenPosition;
-	                        final int tokenLength = tokenText.length();
 	                        final int tokenIndex = i;
 	                        final String finalTokenText = tokenText;
 	                        
 	                        app.getDisplay().asyncExec(() -> {
 	                            if (!isCancelled) {
-	                                app.getTokenManager().showPromptToken(startOffset, tokenLength, tokenIndex);
-	                                app.getTokenManager().storeTokenInfo(startOffset, finalTokenText);
+	                                app.getTokenManager().storeTokenInfo(startOffset, finalTokenText, tokenIndex);
 	                            }
 	                        });
 	                        
@@ -108,7 +106,14 @@ public class LlamaCppGenerationManager extends BaseGenerationManager {
 
 	@Override
 	protected double getTokenProbability(JsonObject tokenLogprobs) {
+		// No probabilities are streamed when n_probs is 0
+		if (!tokenLogprobs.has("completion_probabilities")) {
+			return Double.NaN;
+		}
 		JsonArray completionProbabilities = tokenLogprobs.getAsJsonArray("completion_probabilities");
+		if (completionProbabilities.size() == 0) {
+			return Double.NaN;
+		}
 		JsonObject currentTokenProbabilities = completionProbabilities.get(0).getAsJsonObject();
 		
 		if (currentTokenProbabilities.has("prob")) {
@@ -22,8 +22,14 @@ public class OpenAiGenerationManager extends BaseGenerationManager {
 	protected JsonObject extractTokenData(JsonObject tokenResponse) {
 		JsonArray completionChoices = tokenResponse.getAsJsonArray("choices");
 		JsonObject primaryCompletion = completionChoices.get(0).getAsJsonObject();
-		if (primaryCompletion.get("logprobs").isJsonNull()) {
-			return null;
+		if (!primaryCompletion.has("logprobs") || primaryCompletion.get("logprobs").isJsonNull()) {
+			// No logprobs requested, so fall back to the plain completion text
+			if (!primaryCompletion.has("text")) {
+				return null;
+			}
+			JsonObject textOnly = new JsonObject();
+			textOnly.add("token", primaryCompletion.get("text"));
+			return textOnly;
 		}
 		JsonObject logProbabilityData = primaryCompletion.getAsJsonObject("logprobs");
 		JsonArray logProbabilityEntries = logProbabilityData.getAsJsonArray("content");
@@ -38,6 +44,9 @@ public class OpenAiGenerationManager extends BaseGenerationManager {
 
 	@Override
 	protected double getTokenProbability(JsonObject tokenLogprobs) {
+		if (!tokenLogprobs.has("logprob")) {
+			return Double.NaN;
+		}
 		double logProbability = tokenLogprobs.get("logprob").getAsDouble();
 		return Math.exp(logProbability);
 	}
@@ -0,0 +1,212 @@
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Immutable rope of characters. Edits return a new rope that shares every
+ * untouched subtree with the old one, so keeping an old version costs only
+ * the nodes an edit created after it.
+ * <p>
+ * Small appends are merged into the trailing leaf, and the tree is rebuilt
+ * balanced once it gets too deep, which keeps edits at O(log n) amortized.
+ */
+public abstract class Rope {
+
+    /** Longest leaf; small text is merged into neighbouring leaves up to this size */
+    private static final int LEAF_SIZE = 512;
+
+    /** Depth at which the tree is rebalanced */
+    private static final int MAX_DEPTH = 48;
+
+    public static final Rope EMPTY = new Leaf("");
+
+    /**
+     * Builds a balanced rope over the text in leaves of at most LEAF_SIZE
+     * characters, so an edit anywhere copies at most one leaf
+     */
+    public static Rope of(String text) {
+        if (text.length() <= LEAF_SIZE) {
+            return text.isEmpty() ? EMPTY : new Leaf(text);
+        }
+        List<Leaf> leaves = new ArrayList<>(text.length() / LEAF_SIZE + 1);
+        for (int i = 0; i < text.length(); i += LEAF_SIZE) {
+            leaves.add(new Leaf(text.substring(i, Math.min(text.length(), i + LEAF_SIZE))));
+        }
+        return build(leaves, 0, leaves.size());
+    }
+
+    public abstract int length();
+
+    abstract int depth();
+
+    abstract void appendTo(StringBuilder builder, int start, int end);
+
+    abstract Rope split(int start, int end);
+
+    abstract void collectLeaves(List<Leaf> leaves);
+
+    /**
+     * Returns a rope with [start, end) replaced by the text
+     */
+    public Rope replace(int start, int end, String text) {
+        if (start < 0 || end < start || end > length()) {
+            throw new IndexOutOfBoundsException("Replace [" + start + ", " + end + ") in rope of length " + length());
+        }
+        Rope result = concat(concat(split(0, start), of(text)), split(end, length()));
+        return result.depth() > MAX_DEPTH ? result.rebalance() : result;
+    }
+
+    public Rope append(String text) {
+        return replace(length(), length(), text);
+    }
+
+    /**
+     * Copies the characters in [start, end) out of the rope
+     */
+    public String substring(int start, int end) {
+        StringBuilder builder = new StringBuilder(end - start);
+        appendTo(builder, start, end);
+        return builder.toString();
+    }
+
+    @Override
+    public String toString() {
+        return substring(0, length());
+    }
+
+    private static Rope concat(Rope left, Rope right) {
+        if (left.length() == 0) {
+            return right;
+        }
+        if (right.length() == 0) {
+            return left;
+        }
+        if (right.length() < LEAF_SIZE) {
+            // Fold small text into the neighbouring leaf instead of adding a node
+            if (left instanceof Leaf && left.length() + right.length() <= LEAF_SIZE) {
+                return new Leaf(left.toString() + right.toString());
+            }
+            if (left instanceof Node && ((Node) left).right instanceof Leaf
+                    && ((Node) left).right.length() + right.length() <= LEAF_SIZE) {
+                Node node = (Node) left;
+                return new Node(node.left, new Leaf(node.right.toString() + right.toString()));
+            }
+        }
+        return new Node(left, right);
+    }
+
+    private Rope rebalance() {
+        List<Leaf> leaves = new ArrayList<>();
+        collectLeaves(leaves);
+        return build(leaves, 0, leaves.size());
+    }
+
+    private static Rope build(List<Leaf> leaves, int from, int to) {
+        if (to - from == 0) {
+            return EMPTY;
+        }
+        if (to - from == 1) {
+            return leaves.get(from);
+        }
+        int middle = (from + to) >>> 1;
+        return new Node(build(leaves, from, middle), build(leaves, middle, to));
+    }
+
+    static final class Leaf extends Rope {
+        private final String text;
+
+        Leaf(String text) {
+            this.text = text;
+        }
+
+        @Override
+        public int length() {
+            return text.length();
+        }
+
+        @Override
+        int depth() {
+            return 0;
+        }
+
+        @Override
+        void appendTo(StringBuilder builder, int start, int end) {
+            builder.append(text, start, end);
+        }
+
+        @Override
+        Rope split(int start, int end) {
+            if (start == 0 && end == text.length()) {
+                return this;
+            }
+            return of(text.substring(start, end));
+        }
+
+        @Override
+        void collectLeaves(List<Leaf> leaves) {
+            if (!text.isEmpty()) {
+                leaves.add(this);
+            }
+        }
+
+        @Override
+        public String toString() {
+            return text;
+        }
+    }
+
+    static final class Node extends Rope {
+        private final Rope left;
+        private final Rope right;
+        private final int length;
+        private final int depth;
+
+        Node(Rope left, Rope right) {
+            this.left = left;
+            this.right = right;
+            this.length = left.length() + right.length();
+            this.depth = Math.max(left.depth(), right.depth()) + 1;
+        }
+
+        @Override
+        public int length() {
+            return length;
+        }
+
+        @Override
+        int depth() {
+            return depth;
+        }
+
+        @Override
+        void appendTo(StringBuilder builder, int start, int end) {
+            int leftLength = left.length();
+            if (start < leftLength) {
+                left.appendTo(builder, start, Math.min(end, leftLength));
+            }
+            if (end > leftLength) {
+                right.appendTo(builder, Math.max(start, leftLength) - leftLength, end - leftLength);
+            }
+        }
+
+        @Override
+        Rope split(int start, int end) {
+            if (start == 0 && end == length) {
+                return this;
+            }
+            int leftLength = left.length();
+            if (end <= leftLength) {
+                return left.split(start, end);
+            }
+            if (start >= leftLength) {
+                return right.split(start - leftLength, end - leftLength);
+            }
+            return concat(left.split(start, leftLength), right.split(0, end - leftLength));
+        }
+
+        @Override
+        void collectLeaves(List<Leaf> leaves) {
+            left.collectLeaves(leaves);
+            right.collectLeaves(leaves);
+        }
+    }
+}
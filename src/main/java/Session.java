@@ -1,5 +1,10 @@
 import com.google.gson.Gson;
 import com.google.gson.JsonObject;
+import com.google.gson.JsonParser;
+import com.google.gson.stream.JsonReader;
+import com.google.gson.stream.JsonToken;
+import com.google.gson.stream.JsonWriter;
+import java.io.IOException;
 import java.time.LocalDateTime;
 import java.time.format.DateTimeFormatter;
 import java.util.UUID;
@@ -8,13 +13,17 @@ import java.util.UUID;
  * Represents a single MikuPad session containing all state for a conversation.
  * Sessions can be saved, loaded, and switched between.
  */
-public class Session {
+public class Session implements SessionWriter.Content {
+    
+    private static final Gson GSON = new Gson();
     
     private String id;
     private String name;
     private String promptText;
     private LocalDateTime created;
     private LocalDateTime lastModified;
+    /** Last journal entry the prompt text includes (see SessionJournal) */
+    private long journalSeq;
     
     // API Settings
     private String endpoint;
@@ -60,6 +69,7 @@ public class Session {
         this.promptText = other.promptText;
         this.created = LocalDateTime.now();
         this.lastModified = LocalDateTime.now();
+        this.journalSeq = other.journalSeq;
         
         this.endpoint = other.endpoint;
         this.apiKey = other.apiKey;
@@ -67,6 +77,38 @@ public class Session {
         this.settings = new Settings(other.settings);
     }
     
+    /**
+     * Copies the session, keeping its id, so it can be written while the
+     * original keeps changing. The prompt text is shared, not copied.
+     */
+    public Session snapshot() {
+        Session copy = new Session(this);
+        copy.id = id;
+        copy.name = name;
+        copy.created = created;
+        copy.lastModified = lastModified;
+        return copy;
+    }
+    
+    /**
+     * Gives the session a new id, for an imported session whose id is taken
+     */
+    public void renewId() {
+        this.id = UUID.randomUUID().toString();
+    }
+    
+    /**
+     * Whether the id has the form of the ids this class generates. The id
+     * names the session's files, so ids from outside must pass this check.
+     */
+    public static boolean isWellFormedId(String id) {
+        try {
+            return id != null && UUID.fromString(id).toString().equals(id);
+        } catch (IllegalArgumentException e) {
+            return false;
+        }
+    }
+    
     /**
      * Updates the last modified timestamp
      */
@@ -84,6 +126,7 @@ public class Session {
         json.addProperty("promptText", promptText);
         json.addProperty("created", created.format(DateTimeFormatter.ISO_LOCAL_DATE_TIME));
         json.addProperty("lastModified", lastModified.format(DateTimeFormatter.ISO_LOCAL_DATE_TIME));
+        json.addProperty("journalSeq", journalSeq);
         
         json.addProperty("endpoint", endpoint);
         json.addProperty("apiKey", apiKey);
@@ -95,6 +138,96 @@ public class Session {
         return json;
     }
     
+    /**
+     * Writes the session in the {@link #toJson} format straight to the
+     * writer, without building a JSON tree of the prompt text
+     */
+    @Override
+    public void writeJson(JsonWriter out) throws IOException {
+        out.beginObject();
+        out.name("id").value(id);
+        out.name("name").value(name);
+        out.name("promptText").value(promptText);
+        out.name("created").value(created.format(DateTimeFormatter.ISO_LOCAL_DATE_TIME));
+        out.name("lastModified").value(lastModified.format(DateTimeFormatter.ISO_LOCAL_DATE_TIME));
+        out.name("journalSeq").value(journalSeq);
+        
+        out.name("endpoint").value(endpoint);
+        out.name("apiKey").value(apiKey);
+        out.name("model").value(model);
+        
+        // The settings are small, so they go through their JSON form
+        out.name("settings");
+        GSON.toJson(settings.toSessionJson(), out);
+        out.endObject();
+    }
+    
+    /**
+     * Reads a session written by {@link #writeJson} or {@link #toJson} from
+     * the stream. With {@code metadataOnly} the prompt text is skipped
+     * without being read into memory and left empty.
+     */
+    public static Session readJson(JsonReader in, boolean metadataOnly) throws IOException {
+        Session session = new Session();
+        String id = null;
+        JsonObject settingsJson = null;
+        JsonObject samplingParamsJson = null;
+        Double temperature = null;
+        Integer maxTokens = null;
+        
+        in.beginObject();
+        while (in.hasNext()) {
+            String field = in.nextName();
+            if (in.peek() == JsonToken.NULL) {
+                in.skipValue();
+                continue;
+            }
+            switch (field) {
+                case "id": id = in.nextString(); break;
+                case "name": session.name = in.nextString(); break;
+                case "promptText":
+                    if (metadataOnly) {
+                        in.skipValue();
+                    } else {
+                        session.promptText = in.nextString();
+                    }
+                    break;
+                case "created": session.created = LocalDateTime.parse(in.nextString(), DateTimeFormatter.ISO_LOCAL_DATE_TIME); break;
+                case "lastModified": session.lastModified = LocalDateTime.parse(in.nextString(), DateTimeFormatter.ISO_LOCAL_DATE_TIME); break;
+                case "journalSeq": session.journalSeq = in.nextLong(); break;
+                case "endpoint": session.endpoint = in.nextString(); break;
+                case "apiKey": session.apiKey = in.nextString(); break;
+                case "model": session.model = in.nextString(); break;
+                case "settings": settingsJson = JsonParser.parseReader(in).getAsJsonObject(); break;
+                case "samplingParams": samplingParamsJson = JsonParser.parseReader(in).getAsJsonObject(); break;
+                case "temperature": temperature = in.nextDouble(); break;
+                case "maxTokens": maxTokens = in.nextInt(); break;
+                default: in.skipValue(); break;
+            }
+        }
+        in.endObject();
+        
+        if (id == null) {
+            throw new IOException("Session has no id");
+        }
+        session.id = id;
+        
+        // Same precedence as fromJson
+        if (settingsJson != null || samplingParamsJson != null) {
+            session.settings = Settings.fromJson(settingsJson != null ? settingsJson : samplingParamsJson);
+        } else {
+            // Backward compatibility - convert old temperature/maxTokens
+            if (temperature != null) {
+                session.settings.setTemperature(temperature);
+            }
+            if (maxTokens != null) {
+                session.settings.setMaxTokens(maxTokens);
+            }
+        }
+        
+        return session;
+    }
+    
     /**
      * Creates session from JSON
      */
@@ -106,6 +239,9 @@ public class Session {
         session.promptText = json.get("promptText").getAsString();
         session.created = LocalDateTime.parse(json.get("created").getAsString(), DateTimeFormatter.ISO_LOCAL_DATE_TIME);
         session.lastModified = LocalDateTime.parse(json.get("lastModified").getAsString(), DateTimeFormatter.ISO_LOCAL_DATE_TIME);
+        if (json.has("journalSeq")) {
+            session.journalSeq = json.get("journalSeq").getAsLong();
+        }
         
         session.endpoint = json.get("endpoint").getAsString();
         session.apiKey = json.get("apiKey").getAsString();
@@ -147,6 +283,9 @@ public class Session {
     public LocalDateTime getCreated() { return created; }
     public LocalDateTime getLastModified() { return lastModified; }
     
+    public long getJournalSeq() { return journalSeq; }
+    public void setJournalSeq(long journalSeq) { this.journalSeq = journalSeq; }
+    
     public String getEndpoint() { return endpoint; }
     public void setEndpoint(String endpoint) { 
         this.endpoint = endpoint; 
@@ -0,0 +1,115 @@
+import com.google.gson.JsonObject;
+import java.time.LocalDateTime;
+import java.time.format.DateTimeFormatter;
+import java.util.Comparator;
+
+/**
+ * The part of a session kept in the session index: enough to list and pick
+ * sessions without reading their prompt text or settings.
+ */
+public class SessionInfo {
+
+    /** Most recently modified first; the id keeps the order stable for equal times */
+    public static final Comparator<SessionInfo> ORDER = Comparator
+        .comparing(SessionInfo::getLastModified, Comparator.reverseOrder()).thenComparing(SessionInfo::getId);
+
+    /** Size of entries rebuilt from session files, which skip the prompt text */
+    public static final int UNKNOWN_SIZE = -1;
+
+    private static final DateTimeFormatter DISPLAY_FORMAT = DateTimeFormatter.ofPattern(Constants.SESSION_DISPLAY_DATE_FORMAT);
+
+    private String id;
+    private String name;
+    private LocalDateTime created;
+    private LocalDateTime lastModified;
+    private int size;
+
+    /**
+     * Creates the index entry for a loaded session
+     */
+    public SessionInfo(Session session) {
+        this.id = session.getId();
+        update(session);
+    }
+
+    private SessionInfo() {
+    }
+
+    /**
+     * Creates the entry for a session read without its prompt text. The size
+     * stays UNKNOWN_SIZE until the session is next loaded and saved.
+     */
+    public static SessionInfo withoutSize(Session session) {
+        SessionInfo info = new SessionInfo(session);
+        info.size = UNKNOWN_SIZE;
+        return info;
+    }
+
+    /**
+     * Copies the indexed fields from the session. Returns true if any changed.
+     */
+    public boolean update(Session session) {
+        boolean changed = !session.getName().equals(name)
+            || !session.getCreated().equals(created)
+            || !session.getLastModified().equals(lastModified)
+            || session.getPromptText().length() != size;
+        this.name = session.getName();
+        this.created = session.getCreated();
+        this.lastModified = session.getLastModified();
+        this.size = session.getPromptText().length();
+        return changed;
+    }
+
+    /**
+     * Converts the entry to JSON for the index file
+     */
+    public JsonObject toJson() {
+        JsonObject json = new JsonObject();
+        json.addProperty("id", id);
+        json.addProperty("name", name);
+        json.addProperty("created", created.format(DateTimeFormatter.ISO_LOCAL_DATE_TIME));
+        json.addProperty("lastModified", lastModified.format(DateTimeFormatter.ISO_LOCAL_DATE_TIME));
+        json.addProperty("size", size);
+        return json;
+    }
+
+    /**
+     * Creates an entry from the index file, or returns null if the entry is
+     * missing fields (indexes written before these were added)
+     */
+    public static SessionInfo fromJson(JsonObject json) {
+        if (!json.has("id") || !json.has("name") || !json.has("created")
+                || !json.has("lastModified") || !json.has("size")) {
+            return null;
+        }
+        SessionInfo info = new SessionInfo();
+        info.id = json.get("id").getAsString();
+        info.name = json.get("name").getAsString();
+        info.created = LocalDateTime.parse(json.get("created").getAsString(), DateTimeFormatter.ISO_LOCAL_DATE_TIME);
+        info.lastModified = LocalDateTime.parse(json.get("lastModified").getAsString(), DateTimeFormatter.ISO_LOCAL_DATE_TIME);
+        info.size = json.get("size").getAsInt();
+        return info;
+    }
+
+    public String getId() { return id; }
+    public String getName() { return name; }
+    public LocalDateTime getCreated() { return created; }
+    public LocalDateTime getLastModified() { return lastModified; }
+
+    /**
+     * Length of the prompt text in characters, or UNKNOWN_SIZE
+     */
+    public int getSize() { return size; }
+
+    @Override
+    public String toString() {
+        return name + " (" + getDisplayDate() + ")";
+    }
+
+    /**
+     * Last modified time formatted for display
+     */
+    public String getDisplayDate() {
+        return lastModified.format(DISPLAY_FORMAT);
+    }
+}
@@ -0,0 +1,325 @@
+import org.eclipse.swt.custom.StyledText;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.function.BooleanSupplier;
+
+/**
+ * Append-only journal of the prompt edits of one session, so edits made
+ * since the last session save survive a crash.
+ * <p>
+ * Every edit gets the next sequence number and is queued in memory; a
+ * background thread appends the queue to the file every
+ * {@link Constants#JOURNAL_FLUSH_INTERVAL_MS}. Streamed tokens that extend the
+ * previous queued insert are merged into it, so a generation is written as a
+ * few large records. The session file records the last sequence number its
+ * text includes, and on load the records after it are replayed.
+ * <p>
+ * Once the file grows past {@link Constants#JOURNAL_COMPACT_THRESHOLD_BYTES}
+ * it is rewritten on the background thread without the records the saved
+ * session already contains.
+ */
+public class SessionJournal {
+
+    private static final int MAGIC = 0x4D4B4A4E; // "MKJN"
+    private static final int VERSION = 1;
+
+    private final File file;
+    private final ScheduledExecutorService executor;
+    private final List<Record> pending = new ArrayList<>();
+    private DataOutputStream out;
+    private long lastSeq;
+    /** Last sequence number included in a saved session */
+    private long snapshotSeq;
+    private boolean replaying = false;
+
+    public SessionJournal(String sessionId, long snapshotSeq) {
+        this.file = getFile(sessionId);
+        this.snapshotSeq = snapshotSeq;
+        this.lastSeq = snapshotSeq;
+        this.executor = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread thread = new Thread(r, "session-journal");
+            thread.setDaemon(true);
+            return thread;
+        });
+        executor.scheduleWithFixedDelay(this::flushPending, Constants.JOURNAL_FLUSH_INTERVAL_MS,
+            Constants.JOURNAL_FLUSH_INTERVAL_MS, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Location of the journal file for a session
+     */
+    public static File getFile(String sessionId) {
+        File journalDir = new File(new File(System.getProperty("user.home"), Constants.MIKUPAD_DIR_NAME),
+            Constants.JOURNAL_DIR_NAME);
+        return new File(journalDir, sessionId + Constants.JOURNAL_FILE_EXTENSION);
+    }
+
+    /**
+     * Applies the journaled edits that are newer than the saved session text.
+     * Returns the number of edits applied. Replay stops at the first edit
+     * that does not fit the text, and the rest of the journal is dropped.
+     */
+    public int replay(StyledText text) {
+        List<Record> records = new ArrayList<>();
+        boolean truncated = readRecords(records);
+
+        int applied = 0;
+        replaying = true;
+        try {
+            for (Record record : records) {
+                if (record.seq <= snapshotSeq) {
+                    continue;
+                }
+                if (record.start + record.replacedLength > text.getCharCount()) {
+                    System.err.println("Journal does not match the session text, dropping it: " + file);
+                    truncated = true;
+                    break;
+                }
+                text.replaceTextRange(record.start, record.replacedLength, record.text);
+                lastSeq = record.seq;
+                applied++;
+            }
+        } finally {
+            replaying = false;
+        }
+
+        if (truncated) {
+            // Start over from what was applied; the next save covers it
+            List<Record> kept = new ArrayList<>();
+            for (Record record : records) {
+                if (record.seq > snapshotSeq && record.seq <= lastSeq) {
+                    kept.add(record);
+                }
+            }
+            executor.execute(() -> rewrite(kept));
+        }
+        return applied;
+    }
+
+    /**
+     * Queues an edit of the prompt text. Called on the UI thread.
+     */
+    public void recordEdit(int start, int replacedLength, String inserted) {
+        if (replaying) {
+            return;
+        }
+        synchronized (pending) {
+            lastSeq++;
+            if (replacedLength == 0 && !pending.isEmpty()) {
+                Record previous = pending.get(pending.size() - 1);
+                // A saved session may already include the previous record, so only merge newer ones
+                if (previous.replacedLength == 0 && previous.seq > snapshotSeq
+                        && previous.start + previous.text.length() == start) {
+                    pending.set(pending.size() - 1, new Record(lastSeq, previous.start, 0, previous.text + inserted));
+                    return;
+                }
+            }
+            pending.add(new Record(lastSeq, start, replacedLength, inserted));
+        }
+    }
+
+    /**
+     * Sequence number of the latest edit, to be stored with the session
+     */
+    public long getLastSeq() {
+        return lastSeq;
+    }
+
+    /**
+     * Notes that the session was saved with the text up to the sequence
+     * number. Once the save is on disk ({@code saved} returns true) and the
+     * journal is large, the records it covers are dropped.
+     */
+    public void sessionSaved(long seq, BooleanSupplier saved) {
+        synchronized (pending) {
+            snapshotSeq = seq;
+        }
+        if (file.length() > Constants.JOURNAL_COMPACT_THRESHOLD_BYTES) {
+            executor.execute(() -> {
+                if (saved.getAsBoolean()) {
+                    compact(seq);
+                }
+            });
+        }
+    }
+
+    /**
+     * Writes the queued edits and stops the background thread
+     */
+    public void close() {
+        executor.execute(this::flushPending);
+        executor.execute(this::closeQuietly);
+        awaitShutdown();
+    }
+
+    /**
+     * Stops the background thread and deletes the journal, for a session
+     * that was deleted
+     */
+    public void discard() {
+        synchronized (pending) {
+            pending.clear();
+        }
+        executor.execute(this::closeQuietly);
+        awaitShutdown();
+        file.delete();
+    }
+
+    private void awaitShutdown() {
+        executor.shutdown();
+        try {
+            if (!executor.awaitTermination(Constants.SESSION_WRITE_TIMEOUT_MS, TimeUnit.MILLISECONDS)) {
+                System.err.println("Timed out writing session journal: " + file);
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private void flushPending() {
+        List<Record> records;
+        synchronized (pending) {
+            if (pending.isEmpty()) {
+                return;
+            }
+            records = new ArrayList<>(pending);
+            pending.clear();
+        }
+        try {
+            if (out == null) {
+                file.getParentFile().mkdirs();
+                boolean isNew = !file.exists() || file.length() == 0;
+                out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file, true)));
+                if (isNew) {
+                    writeHeader(out);
+                }
+            }
+            for (Record record : records) {
+                writeRecord(out, record);
+            }
+            out.flush();
+        } catch (IOException e) {
+            System.err.println("Failed to write session journal: " + e.getMessage());
+            closeQuietly();
+        }
+    }
+
+    private void compact(long seq) {
+        flushPending();
+        List<Record> records = new ArrayList<>();
+        readRecords(records);
+        records.removeIf(record -> record.seq <= seq);
+        rewrite(records);
+    }
+
+    private void rewrite(List<Record> records) {
+        closeQuietly();
+        if (records.isEmpty()) {
+            file.delete();
+            return;
+        }
+        File tempFile = new File(file.getPath() + ".tmp");
+        try {
+            try (DataOutputStream writer = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tempFile)))) {
+                writeHeader(writer);
+                for (Record record : records) {
+                    writeRecord(writer, record);
+                }
+            }
+            Files.move(tempFile.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING);
+        } catch (IOException e) {
+            System.err.println("Failed to compact session journal: " + e.getMessage());
+            tempFile.delete();
+        }
+    }
+
+    /**
+     * Reads the complete records of the file. Returns true if the file was
+     * cut short or unreadable.
+     */
+    private boolean readRecords(List<Record> records) {
+        if (!file.exists() || file.length() == 0) {
+            return false;
+        }
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)))) {
+            if (in.readInt() != MAGIC || in.readByte() != VERSION) {
+                System.err.println("Ignoring unrecognized journal file: " + file);
+                return true;
+            }
+            while (true) {
+                long seq;
+                try {
+                    seq = in.readLong();
+                } catch (EOFException e) {
+                    return false;
+                }
+                int start = in.readInt();
+                int replacedLength = in.readInt();
+                byte[] bytes = new byte[in.readInt()];
+                in.readFully(bytes);
+                records.add(new Record(seq, start, replacedLength, new String(bytes, StandardCharsets.UTF_8)));
+            }
+        } catch (EOFException e) {
+            // A record cut short by the crash; keep what was complete
+            return true;
+        } catch (IOException e) {
+            System.err.println("Failed to read session journal: " + e.getMessage());
+            return true;
+        }
+    }
+
+    private void writeHeader(DataOutputStream writer) throws IOException {
+        writer.writeInt(MAGIC);
+        writer.writeByte(VERSION);
+    }
+
+    private void writeRecord(DataOutputStream writer, Record record) throws IOException {
+        byte[] bytes = record.text.getBytes(StandardCharsets.UTF_8);
+        writer.writeLong(record.seq);
+        writer.writeInt(record.start);
+        writer.writeInt(record.replacedLength);
+        writer.writeInt(bytes.length);
+        writer.write(bytes);
+    }
+
+    private void closeQuietly() {
+        if (out != null) {
+            try {
+                out.close();
+            } catch (IOException e) {
+                System.err.println("Failed to close session journal: " + e.getMessage());
+            }
+            out = null;
+        }
+    }
+
+    private static class Record {
+        final long seq;
+        final int start;
+        final int replacedLength;
+        final String text;
+
+        Record(long seq, int start, int replacedLength, String text) {
+            this.seq = seq;
+            this.start = start;
+            this.replacedLength = replacedLength;
+            this.text = text;
+        }
+    }
+}
@@ -1,32 +1,124 @@
-import com.google.gson.Gson;
 import com.google.gson.JsonArray;
 import com.google.gson.JsonElement;
 import com.google.gson.JsonObject;
 import com.google.gson.JsonParser;
+import com.google.gson.stream.JsonReader;
+import com.google.gson.stream.JsonWriter;
 
+import java.io.BufferedOutputStream;
+import java.io.BufferedWriter;
 import java.io.File;
 import java.io.FileReader;
-import java.io.FileWriter;
+import java.io.FileOutputStream;
 import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Reader;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
 import java.util.ArrayList;
+import java.util.Base64;
+import java.util.Collections;
+import java.util.Enumeration;
 import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
+import java.util.function.Consumer;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
+import java.util.zip.ZipOutputStream;
 
 /**
  * Manages multiple sessions with persistence to disk.
  * Handles session creation, switching, deletion, and import/export.
+ * <p>
+ * Each session is stored in its own file in the sessions directory, next to
+ * a small index with the session order, the current session and a
+ * {@link SessionInfo} per session. Changes mark the session (or the index)
+ * dirty and a save writes only what is dirty.
+ * <p>
+ * Only the index is read at startup. A session's file is read the first time
+ * the session is asked for, and a bounded number of sessions stay loaded.
+ * <p>
+ * The index entries are kept sorted by {@link SessionInfo#ORDER}. Each
+ * change to that order is reported to the {@link Listener} as a single move,
+ * so a session list can update just the rows that changed.
  */
 public class SessionManager {
     
-    private Map<String, Session> sessions;
+    /**
+     * Told about every change to the session order
+     */
+    public interface Listener {
+        /**
+         * A session moved from oldIndex to newIndex. A new session has
+         * oldIndex -1, a removed one newIndex -1. Both may be equal when only
+         * the session's entry changed.
+         */
+        void sessionMoved(SessionInfo info, int oldIndex, int newIndex);
+    }
+    
+    /**
+     * Progress of a bulk export or import, reported from the thread doing it
+     */
+    public interface ArchiveProgress {
+        void worked(int done, int total);
+        
+        boolean isCancelled();
+    }
+    
+    /**
+     * Sessions read from an archive and queued for writing, to be added with
+     * {@link #addImportedSessions}
+     */
+    public static class ArchiveImport {
+        private final List<SessionInfo> sessions = new ArrayList<>();
+        private int duplicates;
+        
+        public List<SessionInfo> getSessions() { return sessions; }
+        
+        /**
+         * Number of archived sessions skipped because they were already present
+         */
+        public int getDuplicates() { return duplicates; }
+    }
+    
+    /** Index entries of all sessions by id */
+    private Map<String, SessionInfo> sessions;
+    /** The same entries in display order */
+    private List<SessionInfo> orderedSessions = new ArrayList<>();
+    private Listener listener;
+    /** Sessions read from disk, least recently used first */
+    private Map<String, Session> loadedSessions;
     private String currentSessionId;
-    private File sessionsFile;
-    private Gson gson;
+    private File sessionsDir;
+    private File indexFile;
+    private File legacySessionsFile;
+    private SessionWriter writer = new SessionWriter();
+    private SessionSearchIndex searchIndex = new SessionSearchIndex();
+    
+    /** Sessions changed since they were last written */
+    private Set<String> dirtySessions = new HashSet<>();
+    /** Whether the session list or current session changed since the index was last written */
+    private boolean indexDirty = false;
     
     public SessionManager() {
         this.sessions = new HashMap<>();
-        this.gson = new Gson();
+        this.loadedSessions = new LinkedHashMap<String, Session>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, Session> eldest) {
+                // The current session may hold edits that are not saved yet
+                return size() > Constants.MAX_LOADED_SESSIONS
+                    && !eldest.getKey().equals(currentSessionId)
+                    && !dirtySessions.contains(eldest.getKey());
+            }
+        };
         
         // Sessions stored in user home directory
         String userHome = System.getProperty("user.home");
@@ -34,8 +126,13 @@ public class SessionManager {
         if (!mikupadDir.exists()) {
             mikupadDir.mkdirs();
         }
-        this.sessionsFile = new File(mikupadDir, Constants.SESSIONS_FILE_NAME);
+        this.sessionsDir = new File(mikupadDir, Constants.SESSIONS_DIR_NAME);
+        this.indexFile = new File(sessionsDir, Constants.SESSION_INDEX_FILE_NAME);
+        this.legacySessionsFile = new File(mikupadDir, Constants.SESSIONS_FILE_NAME);
         
+        if (!indexFile.exists() && legacySessionsFile.exists()) {
+            migrateLegacySessions();
+        }
         loadSessions();
         
         // Create default session if none exist
@@ -45,6 +142,7 @@ public class SessionManager {
             addSession(defaultSession);
             setCurrentSession(defaultSession.getId());
         }
+        searchIndex.open(getAllSessions(), this::readSession);
     }
     
     /**
@@ -60,7 +158,10 @@ public class SessionManager {
      * Adds an existing session to the manager
      */
     public void addSession(Session session) {
-        sessions.put(session.getId(), session);
+        putInfo(new SessionInfo(session));
+        dirtySessions.add(session.getId());
+        loadedSessions.put(session.getId(), session);
+        indexDirty = true;
         saveSessions();
     }
     
@@ -72,11 +173,21 @@ public class SessionManager {
             return false; // Don't delete the last session
         }
         
-        Session removed = sessions.remove(sessionId);
+        SessionInfo removed = sessions.get(sessionId);
         if (removed != null) {
+            removeInfo(removed);
+            loadedSessions.remove(sessionId);
+            writer.delete(getSessionFile(sessionId));
+            dirtySessions.remove(sessionId);
+            indexDirty = true;
+            TokenSidecar.delete(sessionId);
+            UndoHistoryStore.delete(sessionId);
+            SessionJournal.getFile(sessionId).delete();
+            VersionStore.delete(sessionId);
+            searchIndex.remove(sessionId);
             // If we deleted the current session, switch to another one
             if (sessionId.equals(currentSessionId)) {
-                String newCurrentId = sessions.keySet().iterator().next();
+                String newCurrentId = orderedSessions.get(0).getId();
                 setCurrentSession(newCurrentId);
             }
             saveSessions();
@@ -89,22 +200,42 @@ public class SessionManager {
      * Clones an existing session
      */
     public Session cloneSession(String sessionId) {
-        Session original = sessions.get(sessionId);
+        Session original = getSession(sessionId);
         if (original != null) {
             Session clone = new Session(original);
+            copyTokenData(sessionId, clone.getId());
             addSession(clone);
             return clone;
         }
         return null;
     }
     
+    private void copyTokenData(String fromSessionId, String toSessionId) {
+        TokenSidecar.copy(fromSessionId, toSessionId);
+        UndoHistoryStore.copy(fromSessionId, toSessionId);
+        copyFile(SessionJournal.getFile(fromSessionId), SessionJournal.getFile(toSessionId));
+        VersionStore.copy(fromSessionId, toSessionId);
+    }
+    
+    private void copyFile(File source, File target) {
+        if (source.exists()) {
+            try {
+                Files.copy(source.toPath(), target.toPath(), StandardCopyOption.REPLACE_EXISTING);
+            } catch (IOException e) {
+                System.err.println("Failed to copy " + source.getName() + ": " + e.getMessage());
+            }
+        }
+    }
+    
     /**
      * Renames a session
      */
     public boolean renameSession(String sessionId, String newName) {
-        Session session = sessions.get(sessionId);
+        Session session = getSession(sessionId);
         if (session != null) {
             session.setName(newName);
+            dirtySessions.add(sessionId);
+            indexDirty = true;
             saveSessions();
             return true;
         }
@@ -115,7 +246,14 @@ public class SessionManager {
      * Gets the current active session
      */
     public Session getCurrentSession() {
-        return sessions.get(currentSessionId);
+        return currentSessionId == null ? null : getSession(currentSessionId);
+    }
+    
+    /**
+     * Gets the id of the current session without loading it
+     */
+    public String getCurrentSessionId() {
+        return currentSessionId;
     }
     
     /**
@@ -124,82 +262,451 @@ public class SessionManager {
     public void setCurrentSession(String sessionId) {
         if (sessions.containsKey(sessionId)) {
             this.currentSessionId = sessionId;
+            indexDirty = true;
             saveSessions();
         }
     }
     
     /**
-     * Gets all sessions as a list
+     * Gets the index entries of all sessions in display order, without
+     * loading them. The list is a live read-only view.
      */
-    public List<Session> getAllSessions() {
-        return new ArrayList<>(sessions.values());
+    public List<SessionInfo> getAllSessions() {
+        return Collections.unmodifiableList(orderedSessions);
     }
     
     /**
-     * Gets a session by ID
+     * Gets the index entry of a session, or null if there is no such session
      */
-    public Session getSession(String sessionId) {
+    public SessionInfo getSessionInfo(String sessionId) {
         return sessions.get(sessionId);
     }
     
+    public void setListener(Listener listener) {
+        this.listener = listener;
+    }
+    
     /**
-     * Exports a session to a file
+     * Gets a session by ID, reading it from disk if it is not loaded
+     */
+    public Session getSession(String sessionId) {
+        Session session = loadedSessions.get(sessionId);
+        if (session == null && sessions.containsKey(sessionId)) {
+            // A save of this session may not have reached the disk yet, so read it through the writer
+            session = readSession(sessionId);
+            if (session != null) {
+                loadedSessions.put(sessionId, session);
+            }
+        }
+        return session;
+    }
+    
+    /**
+     * Reads a session without keeping it loaded. Unlike {@link #getSession}
+     * this is safe to call from any thread.
+     */
+    public Session readSession(String sessionId) {
+        File file = getSessionFile(sessionId);
+        SessionWriter.Content queued = writer.getQueued(file);
+        if (queued instanceof Session) {
+            // Queued snapshots are never changed, but the caller may change what it gets
+            return ((Session) queued).snapshot();
+        }
+        return readSessionFile(file, false);
+    }
+    
+    /**
+     * Finds the sessions whose name or text matches the query, in the
+     * background. See {@link SessionSearchIndex#search}.
+     */
+    public void searchSessions(String query, Consumer<Set<String>> callback) {
+        searchIndex.search(query, callback);
+    }
+    
+    /**
+     * Exports a session to a file as plain JSON, whether or not it is stored compressed
      */
     public void exportSession(String sessionId, File file) throws IOException {
-        Session session = sessions.get(sessionId);
+        Session session = getSession(sessionId);
         if (session != null) {
-            try (FileWriter writer = new FileWriter(file)) {
-                gson.toJson(session.toJson(), writer);
+            try (JsonWriter writer = new JsonWriter(new BufferedWriter(new OutputStreamWriter(new FileOutputStream(file), StandardCharsets.UTF_8)))) {
+                session.writeJson(writer);
             }
         }
     }
     
     /**
-     * Imports a session from a file
+     * Imports a session from a file, plain or compressed. The session gets a
+     * new id if its id is taken or not a well-formed session id.
      */
     public Session importSession(File file) throws IOException {
-        try (FileReader reader = new FileReader(file)) {
-            JsonObject json = JsonParser.parseReader(reader).getAsJsonObject();
-            Session session = Session.fromJson(json);
+        try (JsonReader reader = new JsonReader(SessionWriter.openReader(file))) {
+            Session session = Session.readJson(reader, false);
+            if (!Session.isWellFormedId(session.getId()) || sessions.containsKey(session.getId())) {
+                session.renewId();
+            }
             addSession(session);
             return session;
         }
     }
     
     /**
-     * Saves all sessions to disk
+     * Writes sessions to a zip archive, one plain JSON entry per session.
+     * Sessions are read one at a time through the writer and streamed into
+     * the archive, so this is safe to call from any thread with ids taken
+     * beforehand. Returns the number exported, or -1 if cancelled, in which
+     * case the archive is deleted.
      */
-    private void saveSessions() {
-        try {
-            JsonObject root = new JsonObject();
-            root.addProperty("currentSessionId", currentSessionId);
-            
-            JsonArray sessionsArray = new JsonArray();
-            for (Session session : sessions.values()) {
-                sessionsArray.add(session.toJson());
+    public int exportSessions(List<String> sessionIds, File file, ArchiveProgress progress) throws IOException {
+        int exported = 0;
+        boolean complete = false;
+        try (ZipOutputStream zip = new ZipOutputStream(new BufferedOutputStream(new FileOutputStream(file), Constants.SESSION_IO_BUFFER_SIZE))) {
+            for (int i = 0; i < sessionIds.size(); i++) {
+                if (progress.isCancelled()) {
+                    return -1;
+                }
+                Session session = readSession(sessionIds.get(i));
+                if (session != null) {
+                    zip.putNextEntry(new ZipEntry(session.getId() + Constants.SESSION_FILE_EXTENSION));
+                    // Flushed rather than closed, which would close the archive
+                    JsonWriter out = new JsonWriter(new OutputStreamWriter(zip, StandardCharsets.UTF_8));
+                    session.writeJson(out);
+                    out.flush();
+                    zip.closeEntry();
+                    exported++;
+                }
+                progress.worked(i + 1, sessionIds.size());
             }
-            root.add("sessions", sessionsArray);
-            
-            try (FileWriter writer = new FileWriter(sessionsFile)) {
-                gson.toJson(root, writer);
+            complete = true;
+        } finally {
+            if (!complete) {
+                file.delete();
             }
-        } catch (IOException e) {
-            System.err.println("Failed to save sessions: " + e.getMessage());
         }
+        return exported;
     }
     
     /**
-     * Loads all sessions from disk
+     * Reads the sessions of a zip archive and queues their files for writing,
+     * without touching the session list or the index; pass the result to
+     * {@link #addImportedSessions} on the UI thread. Sessions with the same
+     * name and text as an existing session or an earlier entry are skipped,
+     * compared by a hash of their content. Sessions whose id is taken or
+     * malformed get a new id. Safe to call from any thread with
+     * a copy of the session entries taken beforehand. Returns null if
+     * cancelled, in which case nothing is kept.
      */
-    private void loadSessions() {
-        if (!sessionsFile.exists()) {
+    public ArchiveImport importSessions(File file, List<SessionInfo> existing, ArchiveProgress progress) throws IOException {
+        // Only sessions with the same name and length can be duplicates, so only those are read and hashed
+        Map<String, List<String>> candidates = new HashMap<>();
+        // Entries rebuilt from the files have no size, so they match any length
+        Map<String, List<String>> unknownSize = new HashMap<>();
+        Set<String> takenIds = new HashSet<>();
+        for (SessionInfo info : existing) {
+            if (info.getSize() == SessionInfo.UNKNOWN_SIZE) {
+                unknownSize.computeIfAbsent(info.getName(), k -> new ArrayList<>()).add(info.getId());
+            } else {
+                candidates.computeIfAbsent(info.getName() + '\0' + info.getSize(), k -> new ArrayList<>()).add(info.getId());
+            }
+            takenIds.add(info.getId());
+        }
+        Set<String> hashes = new HashSet<>();
+        
+        ArchiveImport result = new ArchiveImport();
+        boolean complete = false;
+        try (ZipFile zip = new ZipFile(file, StandardCharsets.UTF_8)) {
+            int total = zip.size();
+            int done = 0;
+            Enumeration<? extends ZipEntry> entries = zip.entries();
+            while (entries.hasMoreElements()) {
+                if (progress.isCancelled()) {
+                    return null;
+                }
+                ZipEntry entry = entries.nextElement();
+                if (!entry.isDirectory() && entry.getName().endsWith(Constants.SESSION_FILE_EXTENSION)) {
+                    Session session;
+                    try (JsonReader reader = new JsonReader(new InputStreamReader(zip.getInputStream(entry), StandardCharsets.UTF_8))) {
+                        session = Session.readJson(reader, false);
+                    }
+                    
+                    String hash = contentHash(session);
+                    hashSessions(candidates.remove(session.getName() + '\0' + session.getPromptText().length()), hashes);
+                    hashSessions(unknownSize.remove(session.getName()), hashes);
+                    if (!hashes.add(hash)) {
+                        result.duplicates++;
+                    } else {
+                        // The id becomes a file name, so only ids of the form we generate are kept
+                        if (!Session.isWellFormedId(session.getId()) || !takenIds.add(session.getId())) {
+                            session.renewId();
+                            takenIds.add(session.getId());
+                        }
+                        writer.write(getSessionFile(session.getId()), session, shouldCompress(session));
+                        result.sessions.add(new SessionInfo(session));
+                        // Wait for the write so at most one session is held in memory
+                        writer.flush(Constants.SESSION_WRITE_TIMEOUT_MS);
+                    }
+                }
+                progress.worked(++done, total);
+            }
+            complete = true;
+        } finally {
+            if (!complete) {
+                for (SessionInfo info : result.sessions) {
+                    writer.delete(getSessionFile(info.getId()));
+                }
+            }
+        }
+        return result;
+    }
+    
+    private void hashSessions(List<String> sessionIds, Set<String> hashes) {
+        if (sessionIds == null) {
             return;
         }
+        for (String id : sessionIds) {
+            Session other = readSession(id);
+            if (other != null) {
+                hashes.add(contentHash(other));
+            }
+        }
+    }
+    
+    /**
+     * Adds the sessions of an import to the session list, writing the index once
+     */
+    public void addImportedSessions(ArchiveImport imported) {
+        // Queued first so searches started by the listener see the new sessions
+        searchIndex.add(imported.getSessions(), this::readSession);
+        for (SessionInfo info : imported.getSessions()) {
+            if (!sessions.containsKey(info.getId())) {
+                putInfo(info);
+            }
+        }
+        indexDirty = true;
+        saveSessions();
+    }
+    
+    private static String contentHash(Session session) {
+        try {
+            MessageDigest digest = MessageDigest.getInstance("SHA-256");
+            digest.update(session.getName().getBytes(StandardCharsets.UTF_8));
+            digest.update((byte) 0);
+            digest.update(session.getPromptText().getBytes(StandardCharsets.UTF_8));
+            return Base64.getEncoder().encodeToString(digest.digest());
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+    
+    /**
+     * Writes the dirty sessions and, if needed, the index to disk
+     */
+    private void saveSessions() {
+        sessionsDir.mkdirs();
+        
+        // Only a shallow snapshot is taken here; the JSON is streamed to disk on the writer thread
+        for (String sessionId : dirtySessions) {
+            Session session = loadedSessions.get(sessionId);
+            SessionInfo info = sessions.get(sessionId);
+            if (session != null && info != null) {
+                writer.write(getSessionFile(sessionId), session.snapshot(), shouldCompress(session));
+                searchIndex.update(session);
+                if (updateInfo(info, session)) {
+                    indexDirty = true;
+                }
+            }
+        }
+        dirtySessions.clear();
+        
+        if (indexDirty) {
+            writer.write(indexFile, createIndexJson());
+            indexDirty = false;
+        }
+    }
+    
+    /**
+     * Waits until the saves made so far are written, at most the given time,
+     * and returns whether the latest save of the session reached the disk.
+     * Returns false if the timeout expired first or the write failed. Safe to
+     * call from any thread.
+     */
+    public boolean awaitSessionSaved(String sessionId, long timeoutMillis) {
+        return writer.flush(getSessionFile(sessionId), timeoutMillis);
+    }
+    
+    /**
+     * Writes out everything still queued and stops the background writer,
+     * waiting at most the given time
+     */
+    public void close(long timeoutMillis) {
+        saveSessions();
+        searchIndex.close(timeoutMillis);
+        writer.shutdown(timeoutMillis);
+    }
+    
+    private JsonObject createIndexJson() {
+        JsonObject root = new JsonObject();
+        root.addProperty("currentSessionId", currentSessionId);
+        
+        JsonArray sessionsArray = new JsonArray();
+        for (SessionInfo info : orderedSessions) {
+            sessionsArray.add(info.toJson());
+        }
+        root.add("sessions", sessionsArray);
+        return root;
+    }
+    
+    private void putInfo(SessionInfo info) {
+        sessions.put(info.getId(), info);
+        int index = insertionIndex(info);
+        orderedSessions.add(index, info);
+        fireSessionMoved(info, -1, index);
+    }
+    
+    private void removeInfo(SessionInfo info) {
+        int index = Collections.binarySearch(orderedSessions, info, SessionInfo.ORDER);
+        sessions.remove(info.getId());
+        orderedSessions.remove(index);
+        fireSessionMoved(info, index, -1);
+    }
+    
+    /**
+     * Copies the session into its entry and moves the entry to its new place
+     * in the order. Returns true if the entry changed.
+     */
+    private boolean updateInfo(SessionInfo info, Session session) {
+        int oldIndex = Collections.binarySearch(orderedSessions, info, SessionInfo.ORDER);
+        if (!info.update(session)) {
+            return false;
+        }
+        orderedSessions.remove(oldIndex);
+        int newIndex = insertionIndex(info);
+        orderedSessions.add(newIndex, info);
+        fireSessionMoved(info, oldIndex, newIndex);
+        return true;
+    }
+    
+    private int insertionIndex(SessionInfo info) {
+        int index = Collections.binarySearch(orderedSessions, info, SessionInfo.ORDER);
+        return index >= 0 ? index : -index - 1;
+    }
+    
+    private void fireSessionMoved(SessionInfo info, int oldIndex, int newIndex) {
+        if (listener != null) {
+            listener.sessionMoved(info, oldIndex, newIndex);
+        }
+    }
+    
+    /**
+     * Long prompts are compressed; short ones stay plain JSON, where the
+     * saving is small and the file stays readable
+     */
+    private boolean shouldCompress(Session session) {
+        return Constants.SESSION_COMPRESSION_ENABLED
+            && session.getPromptText().length() >= Constants.SESSION_COMPRESSION_THRESHOLD_CHARS;
+    }
+    
+    private File getSessionFile(String sessionId) {
+        return new File(sessionsDir, sessionId + Constants.SESSION_FILE_EXTENSION);
+    }
+    
+    /**
+     * Loads the index. Entries whose file is gone are dropped, and session
+     * files missing from the index (e.g. written just before a crash) are
+     * read once and added at the end.
+     */
+    private void loadSessions() {
+        Set<String> sessionIds = new HashSet<>();
+        File[] files = sessionsDir.listFiles((dir, name) -> name.endsWith(Constants.SESSION_FILE_EXTENSION)
+            && !name.equals(Constants.SESSION_INDEX_FILE_NAME));
+        if (files != null) {
+            for (File file : files) {
+                sessionIds.add(file.getName().substring(0, file.getName().length() - Constants.SESSION_FILE_EXTENSION.length()));
+            }
+        }
         
-        try (FileReader reader = new FileReader(sessionsFile)) {
+        if (indexFile.exists()) {
+            try (Reader reader = SessionWriter.openReader(indexFile)) {
+                JsonObject root = JsonParser.parseReader(reader).getAsJsonObject();
+                
+                if (root.has("currentSessionId") && !root.get("currentSessionId").isJsonNull()) {
+                    this.currentSessionId = root.get("currentSessionId").getAsString();
+                }
+                
+                if (root.has("sessions")) {
+                    for (JsonElement element : root.getAsJsonArray("sessions")) {
+                        String sessionId = element.getAsJsonObject().get("id").getAsString();
+                        if (!sessionIds.contains(sessionId)) {
+                            indexDirty = true;
+                            continue;
+                        }
+                        SessionInfo info = SessionInfo.fromJson(element.getAsJsonObject());
+                        if (info != null) {
+                            sessions.put(sessionId, info);
+                            orderedSessions.add(info);
+                        } else {
+                            indexSessionFile(getSessionFile(sessionId));
+                        }
+                    }
+                }
+            } catch (Exception e) {
+                System.err.println("Failed to load session index: " + e.getMessage());
+            }
+        }
+        
+        for (String sessionId : sessionIds) {
+            if (!sessions.containsKey(sessionId)) {
+                indexSessionFile(getSessionFile(sessionId));
+            }
+        }
+        
+        orderedSessions.sort(SessionInfo.ORDER);
+        
+        // Validate current session exists
+        if (currentSessionId != null && !sessions.containsKey(currentSessionId)) {
+            currentSessionId = null;
+        }
+        if (currentSessionId == null && !sessions.isEmpty()) {
+            currentSessionId = orderedSessions.get(0).getId();
+            indexDirty = true;
+        }
+    }
+    
+    /**
+     * Reads a session file to create its index entry. The prompt text is
+     * skipped, so the entry's size is unknown until the session is next saved.
+     */
+    private void indexSessionFile(File file) {
+        Session session = readSessionFile(file, true);
+        if (session != null) {
+            SessionInfo info = SessionInfo.withoutSize(session);
+            sessions.put(session.getId(), info);
+            orderedSessions.add(info);
+            indexDirty = true;
+        }
+    }
+    
+    private Session readSessionFile(File file, boolean metadataOnly) {
+        if (!file.exists()) {
+            return null;
+        }
+        try (JsonReader reader = new JsonReader(SessionWriter.openReader(file))) {
+            return Session.readJson(reader, metadataOnly);
+        } catch (Exception e) {
+            System.err.println("Failed to load session " + file.getName() + ": " + e.getMessage());
+            return null;
+        }
+    }
+    
+    /**
+     * Splits the old single sessions.json into per-session files. The old
+     * file is kept, renamed, as a backup.
+     */
+    private void migrateLegacySessions() {
+        try (FileReader reader = new FileReader(legacySessionsFile)) {
             JsonObject root = JsonParser.parseReader(reader).getAsJsonObject();
             
-            if (root.has("currentSessionId")) {
+            if (root.has("currentSessionId") && !root.get("currentSessionId").isJsonNull()) {
                 this.currentSessionId = root.get("currentSessionId").getAsString();
             }
             
@@ -207,25 +714,36 @@ public class SessionManager {
                 JsonArray sessionsArray = root.getAsJsonArray("sessions");
                 for (JsonElement element : sessionsArray) {
                     Session session = Session.fromJson(element.getAsJsonObject());
-                    sessions.put(session.getId(), session);
+                    SessionInfo info = new SessionInfo(session);
+                    sessions.put(session.getId(), info);
+                    orderedSessions.add(info);
+                    dirtySessions.add(session.getId());
+                    loadedSessions.put(session.getId(), session);
                 }
             }
-            
-            // Validate current session exists
-            if (currentSessionId != null && !sessions.containsKey(currentSessionId)) {
-                currentSessionId = null;
-            }
-            
         } catch (Exception e) {
-            System.err.println("Failed to load sessions: " + e.getMessage());
-            // Continue with empty sessions - will create default
+            System.err.println("Failed to migrate sessions: " + e.getMessage());
+            return;
         }
+        
+        indexDirty = true;
+        saveSessions();
+        if (writer.flush(Constants.SESSION_WRITE_TIMEOUT_MS)) {
+            legacySessionsFile.renameTo(new File(legacySessionsFile.getPath() + Constants.MIGRATED_FILE_SUFFIX));
+        }
+        sessions.clear();
+        orderedSessions.clear();
+        loadedSessions.clear();
+        currentSessionId = null;
     }
     
     /**
-     * Forces a save of sessions (useful when session content changes)
+     * Forces a save of the current session (useful when session content changes)
      */
     public void saveCurrentState() {
+        if (currentSessionId != null) {
+            dirtySessions.add(currentSessionId);
+        }
         saveSessions();
     }
-}
\ No newline at end of file
+}
@@ -0,0 +1,282 @@
+import org.eclipse.swt.SWT;
+import org.eclipse.swt.graphics.Point;
+import org.eclipse.swt.layout.GridData;
+import org.eclipse.swt.layout.GridLayout;
+import org.eclipse.swt.widgets.Button;
+import org.eclipse.swt.widgets.Composite;
+import org.eclipse.swt.widgets.Control;
+import org.eclipse.swt.widgets.Event;
+import org.eclipse.swt.widgets.Shell;
+import org.eclipse.swt.widgets.Table;
+import org.eclipse.swt.widgets.TableColumn;
+import org.eclipse.swt.widgets.TableItem;
+import org.eclipse.swt.widgets.Text;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Set;
+import java.util.function.Consumer;
+
+/**
+ * Session chooser: a button showing the current session that drops down a
+ * filterable list of all sessions.
+ * <p>
+ * The list is a virtual table over the session manager's ordered entries,
+ * so only the rows on screen are ever filled in. A change to one session
+ * clears just the rows between its old and new position.
+ */
+public class SessionPicker {
+
+    private final Button button;
+    private Shell popup;
+    private Text filterText;
+    private Table table;
+
+    /** All sessions in display order (a live view owned by the session manager) */
+    private List<SessionInfo> sessions = Collections.emptyList();
+    /** Ids of the sessions to show, or null to show all */
+    private Set<String> filter;
+    /** The sessions passing the filter, in display order; unused without a filter */
+    private List<SessionInfo> filtered = new ArrayList<>();
+    private String currentId;
+    private Consumer<String> selectionHandler = id -> { };
+    private Consumer<String> filterHandler = text -> { };
+
+    public SessionPicker(Composite parent) {
+        button = new Button(parent, SWT.PUSH);
+        button.setAlignment(SWT.LEFT);
+        button.setToolTipText("Choose a session");
+        button.addListener(SWT.Selection, e -> open());
+    }
+
+    public void setLayoutData(Object layoutData) {
+        button.setLayoutData(layoutData);
+    }
+
+    /**
+     * Called with the id of the session the user picked
+     */
+    public void setSelectionHandler(Consumer<String> selectionHandler) {
+        this.selectionHandler = selectionHandler;
+    }
+
+    /**
+     * Called with the search text whenever it changes, and again when a
+     * session is added or changed while the list is filtered
+     */
+    public void setFilterHandler(Consumer<String> filterHandler) {
+        this.filterHandler = filterHandler;
+    }
+
+    /**
+     * Sets the ordered list to show, which must stay in sync through
+     * {@link #sessionMoved}
+     */
+    public void setSessions(List<SessionInfo> sessions) {
+        this.sessions = sessions;
+        refilter();
+        refreshAll();
+    }
+
+    /**
+     * Shows the session on the button and marks it in the list
+     */
+    public void setCurrent(SessionInfo info) {
+        currentId = info != null ? info.getId() : null;
+        button.setText(info != null ? info.toString() + "  ▾" : "");
+        button.getParent().layout(new Control[] {button});
+    }
+
+    /**
+     * Shows only the sessions with the given ids, or all for null
+     */
+    public void setFilter(Set<String> ids) {
+        filter = ids;
+        refilter();
+        refreshAll();
+    }
+
+    public String getFilterText() {
+        return filterText != null && !filterText.isDisposed() ? filterText.getText() : "";
+    }
+
+    /**
+     * Updates the rows after a session was added, removed, changed or moved.
+     * Indexes are positions in the full list, as reported by the session manager.
+     */
+    public void sessionMoved(SessionInfo info, int oldIndex, int newIndex) {
+        if (filter != null) {
+            if (newIndex >= 0) {
+                // The matches were found before this session was added or changed
+                filterHandler.accept(getFilterText());
+            }
+            oldIndex = filtered.indexOf(info);
+            refilter();
+            newIndex = filtered.indexOf(info);
+            if (oldIndex < 0 && newIndex < 0) {
+                return;
+            }
+        }
+        if (!isOpen()) {
+            return; // The rows are filled in when the list opens
+        }
+
+        int count = view().size();
+        table.setItemCount(count);
+        // Rows from the first affected position shift; with a move only the rows in between do
+        int from = oldIndex < 0 ? newIndex : newIndex < 0 ? oldIndex : Math.min(oldIndex, newIndex);
+        int to = oldIndex >= 0 && newIndex >= 0 ? Math.max(oldIndex, newIndex) : count - 1;
+        to = Math.min(to, count - 1);
+        if (from <= to) {
+            table.clear(from, to);
+        }
+    }
+
+    private List<SessionInfo> view() {
+        return filter == null ? sessions : filtered;
+    }
+
+    private void refilter() {
+        filtered.clear();
+        if (filter != null) {
+            for (SessionInfo info : sessions) {
+                if (filter.contains(info.getId())) {
+                    filtered.add(info);
+                }
+            }
+        }
+    }
+
+    private boolean isOpen() {
+        return popup != null && !popup.isDisposed() && popup.isVisible();
+    }
+
+    private void refreshAll() {
+        if (!isOpen()) {
+            return;
+        }
+        table.setItemCount(view().size());
+        table.clearAll();
+        int current = indexOfCurrent();
+        if (current >= 0) {
+            table.setSelection(current);
+        } else {
+            table.deselectAll();
+        }
+    }
+
+    private int indexOfCurrent() {
+        List<SessionInfo> view = view();
+        for (int i = 0; i < view.size(); i++) {
+            if (view.get(i).getId().equals(currentId)) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    private void open() {
+        if (popup == null || popup.isDisposed()) {
+            createPopup();
+        }
+        Point location = button.toDisplay(0, button.getSize().y);
+        popup.setBounds(location.x, location.y, Math.max(button.getSize().x, Constants.SESSION_PICKER_WIDTH),
+            Constants.SESSION_PICKER_HEIGHT);
+        popup.setVisible(true);
+        refreshAll();
+        table.showSelection();
+        filterText.setFocus();
+    }
+
+    private void close() {
+        if (isOpen()) {
+            popup.setVisible(false);
+        }
+    }
+
+    private void choose(int index) {
+        List<SessionInfo> view = view();
+        if (index < 0 || index >= view.size()) {
+            return;
+        }
+        String id = view.get(index).getId();
+        close();
+        selectionHandler.accept(id);
+    }
+
+    private void createPopup() {
+        popup = new Shell(button.getShell(), SWT.ON_TOP | SWT.TOOL | SWT.RESIZE);
+        GridLayout layout = new GridLayout(1, false);
+        layout.marginWidth = 2;
+        layout.marginHeight = 2;
+        popup.setLayout(layout);
+        popup.addListener(SWT.Deactivate, e -> close());
+
+        filterText = new Text(popup, SWT.SEARCH | SWT.ICON_SEARCH | SWT.ICON_CANCEL);
+        filterText.setMessage("Search sessions");
+        filterText.setToolTipText("Words to find in session names and text; the last word may be partial. Use \"quotes\" for a phrase.");
+        filterText.setLayoutData(new GridData(SWT.FILL, SWT.CENTER, true, false));
+        filterText.addListener(SWT.Modify, e -> filterHandler.accept(filterText.getText()));
+        filterText.addListener(SWT.DefaultSelection, e -> choose(table.getSelectionIndex() >= 0 ? table.getSelectionIndex() : 0));
+        filterText.addListener(SWT.KeyDown, e -> {
+            if (e.keyCode == SWT.ARROW_DOWN && table.getItemCount() > 0) {
+                table.setFocus();
+                if (table.getSelectionIndex() < 0) {
+                    table.setSelection(0);
+                }
+                e.doit = false;
+            } else if (e.keyCode == SWT.ESC) {
+                close();
+            }
+        });
+
+        table = new Table(popup, SWT.VIRTUAL | SWT.SINGLE | SWT.FULL_SELECTION | SWT.V_SCROLL);
+        table.setHeaderVisible(true);
+        table.setLayoutData(new GridData(SWT.FILL, SWT.FILL, true, true));
+        createColumn("Name", Constants.SESSION_PICKER_WIDTH - 220, SWT.LEFT);
+        createColumn("Modified", 130, SWT.LEFT);
+        createColumn("Size", 70, SWT.RIGHT);
+
+        table.addListener(SWT.SetData, this::fillRow);
+        table.addListener(SWT.DefaultSelection, e -> choose(table.getSelectionIndex()));
+        table.addListener(SWT.MouseUp, e -> {
+            TableItem item = table.getItem(new Point(e.x, e.y));
+            if (item != null) {
+                choose(table.indexOf(item));
+            }
+        });
+        table.addListener(SWT.KeyDown, e -> {
+            if (e.keyCode == SWT.ESC) {
+                close();
+            }
+        });
+    }
+
+    private void createColumn(String text, int width, int alignment) {
+        TableColumn column = new TableColumn(table, alignment);
+        column.setText(text);
+        column.setWidth(width);
+    }
+
+    private void fillRow(Event event) {
+        List<SessionInfo> view = view();
+        if (event.index >= view.size()) {
+            return;
+        }
+        SessionInfo info = view.get(event.index);
+        ((TableItem) event.item).setText(new String[] {info.getName(), info.getDisplayDate(), formatSize(info.getSize())});
+    }
+
+    private static String formatSize(int chars) {
+        if (chars == SessionInfo.UNKNOWN_SIZE) {
+            return "";
+        }
+        if (chars < 1000) {
+            return String.valueOf(chars);
+        }
+        if (chars < 1000000) {
+            return String.format("%.1fk", chars / 1000.0);
+        }
+        return String.format("%.1fM", chars / 1000000.0);
+    }
+}
@@ -0,0 +1,495 @@
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.channels.Channels;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.SortedMap;
+import java.util.TreeMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+import java.util.function.Function;
+
+/**
+ * Inverted index over the names and prompt text of all sessions.
+ * <p>
+ * Each term maps to the sessions containing it, which answers word and
+ * prefix queries without reading any session. Terms are kept sorted so a
+ * prefix is a range of the map.
+ * <p>
+ * Every session has its own segment file holding its term dictionary
+ * followed by the word positions of each term, so saving a session rewrites
+ * one segment. Only the dictionaries are loaded at startup; positions stay
+ * on disk and are read only to check a phrase in the sessions that contain
+ * all its words. Sessions changed since their segment was written are
+ * indexed again.
+ * All work runs on one background thread; results are passed to callbacks
+ * on that thread.
+ */
+public class SessionSearchIndex {
+
+    private static final int MAGIC = 0x4D4B5358; // "MKSX"
+    private static final int VERSION = 3;
+
+    private final File dir;
+    private final ExecutorService executor;
+
+    // Only used on the executor thread; maps each term to the offset of its
+    // positions in the segment of each session containing it
+    private final TreeMap<String, Map<String, Integer>> postings = new TreeMap<>();
+    private final Map<String, Segment> segments = new HashMap<>();
+
+    public SessionSearchIndex() {
+        this.dir = new File(new File(System.getProperty("user.home"), Constants.MIKUPAD_DIR_NAME),
+            Constants.SEARCH_DIR_NAME);
+        this.executor = Executors.newSingleThreadExecutor(r -> {
+            Thread thread = new Thread(r, "session-search");
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    /**
+     * Loads the segments of the given sessions in the background. Sessions
+     * without an up-to-date segment are read with the reader and indexed;
+     * segments of sessions that no longer exist are deleted.
+     */
+    public void open(List<SessionInfo> sessions, Function<String, Session> reader) {
+        Map<String, String> versions = versionsOf(sessions);
+        executor.execute(() -> {
+            for (Map.Entry<String, String> entry : versions.entrySet()) {
+                loadOrIndex(entry.getKey(), entry.getValue(), reader);
+            }
+            File[] files = dir.listFiles((d, name) -> name.endsWith(Constants.SEARCH_FILE_EXTENSION));
+            if (files != null) {
+                for (File file : files) {
+                    String name = file.getName();
+                    if (!versions.containsKey(name.substring(0, name.length() - Constants.SEARCH_FILE_EXTENSION.length()))) {
+                        file.delete();
+                    }
+                }
+            }
+        });
+    }
+
+    /**
+     * Indexes sessions added in bulk in the background, reading each with the
+     * reader, so their text is not held in memory while queued
+     */
+    public void add(List<SessionInfo> sessions, Function<String, Session> reader) {
+        Map<String, String> versions = versionsOf(sessions);
+        executor.execute(() -> {
+            for (Map.Entry<String, String> entry : versions.entrySet()) {
+                loadOrIndex(entry.getKey(), entry.getValue(), reader);
+            }
+        });
+    }
+
+    /**
+     * Re-indexes a saved session in the background
+     */
+    public void update(Session session) {
+        String sessionId = session.getId();
+        String name = session.getName();
+        String text = session.getPromptText();
+        String lastModified = session.getLastModified().toString();
+        executor.execute(() -> index(sessionId, name, text, lastModified));
+    }
+
+    /**
+     * Drops a deleted session from the index in the background
+     */
+    public void remove(String sessionId) {
+        executor.execute(() -> {
+            removePostings(sessionId);
+            getSegmentFile(sessionId).delete();
+        });
+    }
+
+    /**
+     * Finds the sessions matching the query and passes their ids to the
+     * callback, on the index thread. Every word of the query must occur in
+     * the session; the last word also matches longer words unless the query
+     * ends with a space. A query in double quotes matches the words only as
+     * a phrase.
+     */
+    public void search(String query, Consumer<Set<String>> callback) {
+        executor.execute(() -> callback.accept(find(query)));
+    }
+
+    /**
+     * Finishes queued updates, at most the given time, and stops the thread
+     */
+    public void close(long timeoutMillis) {
+        executor.shutdown();
+        try {
+            if (!executor.awaitTermination(timeoutMillis, TimeUnit.MILLISECONDS)) {
+                System.err.println("Timed out updating the session search index");
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * Copies the ids and versions of the sessions on the calling thread, which
+     * keeps changing the entries
+     */
+    private static Map<String, String> versionsOf(List<SessionInfo> sessions) {
+        Map<String, String> versions = new LinkedHashMap<>();
+        for (SessionInfo info : sessions) {
+            versions.put(info.getId(), info.getLastModified().toString());
+        }
+        return versions;
+    }
+
+    private void loadOrIndex(String sessionId, String lastModified, Function<String, Session> reader) {
+        if (!loadSegment(sessionId, lastModified)) {
+            Session session = reader.apply(sessionId);
+            if (session != null) {
+                index(session.getId(), session.getName(), session.getPromptText(), lastModified);
+            }
+        }
+    }
+
+    private Set<String> find(String query) {
+        String trimmed = query.trim();
+        boolean phrase = trimmed.length() > 1 && trimmed.startsWith("\"");
+        boolean prefix = !query.endsWith(" ") && !(phrase && trimmed.endsWith("\"") && trimmed.length() > 1);
+        List<String> terms = words(trimmed);
+        if (terms.isEmpty()) {
+            return new HashSet<>();
+        }
+
+        List<Map<String, List<Integer>>> termPostings = new ArrayList<>();
+        for (int i = 0; i < terms.size(); i++) {
+            boolean last = i == terms.size() - 1;
+            termPostings.add(lookup(terms.get(i), last && prefix));
+        }
+
+        // Start from the rarest term and intersect
+        Map<String, List<Integer>> smallest = termPostings.get(0);
+        for (Map<String, List<Integer>> map : termPostings) {
+            if (map.size() < smallest.size()) {
+                smallest = map;
+            }
+        }
+        Set<String> result = new HashSet<>();
+        for (String sessionId : smallest.keySet()) {
+            boolean all = true;
+            for (Map<String, List<Integer>> map : termPostings) {
+                if (!map.containsKey(sessionId)) {
+                    all = false;
+                    break;
+                }
+            }
+            if (all && (!phrase || containsPhrase(termPostings, sessionId))) {
+                result.add(sessionId);
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Reads the positions of the query terms from the session's segment and
+     * checks whether they occur one after another
+     */
+    private boolean containsPhrase(List<Map<String, List<Integer>>> termPostings, String sessionId) {
+        Segment segment = segments.get(sessionId);
+        int[][] positions = new int[termPostings.size()][];
+        try (RandomAccessFile file = new RandomAccessFile(getSegmentFile(sessionId), "r")) {
+            for (int i = 0; i < positions.length; i++) {
+                positions[i] = readPositions(file, segment, termPostings.get(i).get(sessionId));
+            }
+        } catch (IOException e) {
+            System.err.println("Failed to read search index for session " + sessionId + ": " + e.getMessage());
+            return false;
+        }
+        for (int position : positions[0]) {
+            boolean match = true;
+            for (int i = 1; i < positions.length && match; i++) {
+                match = Arrays.binarySearch(positions[i], position + i) >= 0;
+            }
+            if (match) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Finds the sessions containing the term, or with a prefix any term
+     * starting with it, with the offsets of the matching terms' positions
+     */
+    private Map<String, List<Integer>> lookup(String term, boolean prefix) {
+        SortedMap<String, Map<String, Integer>> range = prefix
+            ? postings.subMap(term, term + Character.MAX_VALUE)
+            : postings.subMap(term, true, term, true);
+        Map<String, List<Integer>> merged = new HashMap<>();
+        for (Map<String, Integer> map : range.values()) {
+            for (Map.Entry<String, Integer> entry : map.entrySet()) {
+                merged.computeIfAbsent(entry.getKey(), k -> new ArrayList<>(1)).add(entry.getValue());
+            }
+        }
+        return merged;
+    }
+
+    /**
+     * Reads the positions stored at the offsets, merged in order
+     */
+    private static int[] readPositions(RandomAccessFile file, Segment segment, List<Integer> offsets) throws IOException {
+        int[] positions = new int[0];
+        for (int offset : offsets) {
+            file.seek(segment.positionsStart + offset);
+            // Not closed, which would close the file
+            DataInputStream in = new DataInputStream(new BufferedInputStream(Channels.newInputStream(file.getChannel())));
+            int start = positions.length;
+            positions = Arrays.copyOf(positions, start + readVarInt(in));
+            int previous = 0;
+            for (int j = start; j < positions.length; j++) {
+                previous += readVarInt(in);
+                positions[j] = previous;
+            }
+        }
+        if (offsets.size() > 1) {
+            Arrays.sort(positions);
+        }
+        return positions;
+    }
+
+    /**
+     * Writes the session's segment and adds its terms. If the segment cannot
+     * be written the session is left out until it is saved again, since
+     * phrases could not be checked.
+     */
+    private void index(String sessionId, String name, String text, String lastModified) {
+        // The name comes first, one position apart from the text so phrases do not span both
+        Map<String, int[]> terms = tokenize(name + "\n\n" + text);
+        removePostings(sessionId);
+        try {
+            addPostings(sessionId, writeSegment(sessionId, lastModified, terms));
+        } catch (IOException e) {
+            System.err.println("Failed to write search index for session " + sessionId + ": " + e.getMessage());
+            getSegmentFile(sessionId).delete();
+        }
+    }
+
+    private void addPostings(String sessionId, Segment segment) {
+        segments.put(sessionId, segment);
+        for (int i = 0; i < segment.terms.length; i++) {
+            postings.computeIfAbsent(segment.terms[i], k -> new HashMap<>()).put(sessionId, segment.offsets[i]);
+        }
+    }
+
+    private void removePostings(String sessionId) {
+        Segment old = segments.remove(sessionId);
+        if (old == null) {
+            return;
+        }
+        for (String term : old.terms) {
+            Map<String, Integer> map = postings.get(term);
+            if (map != null) {
+                map.remove(sessionId);
+                if (map.isEmpty()) {
+                    postings.remove(term);
+                }
+            }
+        }
+    }
+
+    /**
+     * Splits text into lower-case words of letters and digits, with the word
+     * positions of each
+     */
+    static Map<String, int[]> tokenize(String text) {
+        Map<String, List<Integer>> positions = new HashMap<>();
+        int position = 0;
+        int i = 0;
+        while (i < text.length()) {
+            while (i < text.length() && !Character.isLetterOrDigit(text.charAt(i))) {
+                if (text.charAt(i) == '\n' && i + 1 < text.length() && text.charAt(i + 1) == '\n') {
+                    position++; // Paragraph breaks end phrases
+                }
+                i++;
+            }
+            int start = i;
+            while (i < text.length() && Character.isLetterOrDigit(text.charAt(i))) {
+                i++;
+            }
+            if (i > start) {
+                positions.computeIfAbsent(text.substring(start, i).toLowerCase(Locale.ROOT), k -> new ArrayList<>()).add(position++);
+            }
+        }
+        Map<String, int[]> terms = new HashMap<>(positions.size() * 2);
+        for (Map.Entry<String, List<Integer>> entry : positions.entrySet()) {
+            List<Integer> list = entry.getValue();
+            int[] array = new int[list.size()];
+            for (int j = 0; j < array.length; j++) {
+                array[j] = list.get(j);
+            }
+            terms.put(entry.getKey(), array);
+        }
+        return terms;
+    }
+
+    /**
+     * Splits a query into words the same way {@link #tokenize} does, in order
+     */
+    private static List<String> words(String text) {
+        List<String> words = new ArrayList<>();
+        int i = 0;
+        while (i < text.length()) {
+            while (i < text.length() && !Character.isLetterOrDigit(text.charAt(i))) {
+                i++;
+            }
+            int start = i;
+            while (i < text.length() && Character.isLetterOrDigit(text.charAt(i))) {
+                i++;
+            }
+            if (i > start) {
+                words.add(text.substring(start, i).toLowerCase(Locale.ROOT));
+            }
+        }
+        return words;
+    }
+
+    private File getSegmentFile(String sessionId) {
+        return new File(dir, sessionId + Constants.SEARCH_FILE_EXTENSION);
+    }
+
+    /**
+     * Reads the term dictionary of the session's segment if it was written
+     * for the given version of the session. Returns false if it is missing,
+     * stale or unreadable.
+     */
+    private boolean loadSegment(String sessionId, String lastModified) {
+        File file = getSegmentFile(sessionId);
+        if (!file.exists()) {
+            return false;
+        }
+        try (RandomAccessFile in = new RandomAccessFile(file, "r")) {
+            if (in.readInt() != MAGIC || in.readByte() != VERSION || !in.readUTF().equals(lastModified)) {
+                return false;
+            }
+            int termCount = in.readInt();
+            byte[] dictionary = new byte[in.readInt()];
+            in.readFully(dictionary);
+            String[] terms = new String[termCount];
+            int[] offsets = new int[termCount];
+            DataInputStream entries = new DataInputStream(new ByteArrayInputStream(dictionary));
+            for (int i = 0; i < termCount; i++) {
+                byte[] termBytes = new byte[readVarInt(entries)];
+                entries.readFully(termBytes);
+                terms[i] = new String(termBytes, StandardCharsets.UTF_8);
+                offsets[i] = readVarInt(entries);
+            }
+            removePostings(sessionId);
+            addPostings(sessionId, new Segment(in.getFilePointer(), terms, offsets));
+            return true;
+        } catch (IOException e) {
+            System.err.println("Failed to read search index " + file.getName() + ": " + e.getMessage());
+            return false;
+        }
+    }
+
+    /**
+     * Writes the segment: a header, the term dictionary with the offset of
+     * each term's positions, then the positions, delta-encoded
+     */
+    private Segment writeSegment(String sessionId, String lastModified, Map<String, int[]> terms) throws IOException {
+        ByteArrayOutputStream positionBytes = new ByteArrayOutputStream();
+        DataOutputStream positions = new DataOutputStream(positionBytes);
+        ByteArrayOutputStream dictionaryBytes = new ByteArrayOutputStream();
+        DataOutputStream dictionary = new DataOutputStream(dictionaryBytes);
+        String[] termArray = new String[terms.size()];
+        int[] offsets = new int[terms.size()];
+        int i = 0;
+        for (Map.Entry<String, int[]> entry : terms.entrySet()) {
+            termArray[i] = entry.getKey();
+            offsets[i++] = positions.size();
+            // Length-prefixed rather than writeUTF, which fails for terms over 64 KB
+            byte[] termBytes = entry.getKey().getBytes(StandardCharsets.UTF_8);
+            writeVarInt(dictionary, termBytes.length);
+            dictionary.write(termBytes);
+            writeVarInt(dictionary, positions.size());
+            writeVarInt(positions, entry.getValue().length);
+            int previous = 0;
+            for (int position : entry.getValue()) {
+                writeVarInt(positions, position - previous);
+                previous = position;
+            }
+        }
+
+        dir.mkdirs();
+        File file = getSegmentFile(sessionId);
+        File tempFile = new File(file.getPath() + ".tmp");
+        long positionsStart;
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tempFile)))) {
+            out.writeInt(MAGIC);
+            out.writeByte(VERSION);
+            out.writeUTF(lastModified);
+            out.writeInt(terms.size());
+            out.writeInt(dictionaryBytes.size());
+            dictionaryBytes.writeTo(out);
+            positionsStart = out.size();
+            positionBytes.writeTo(out);
+        }
+        Files.move(tempFile.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING);
+        return new Segment(positionsStart, termArray, offsets);
+    }
+
+    private static void writeVarInt(DataOutputStream out, int value) throws IOException {
+        while ((value & ~0x7F) != 0) {
+            out.write((value & 0x7F) | 0x80);
+            value >>>= 7;
+        }
+        out.write(value);
+    }
+
+    private static int readVarInt(DataInputStream in) throws IOException {
+        int value = 0;
+        for (int shift = 0; shift < 32; shift += 7) {
+            int b = in.readUnsignedByte();
+            value |= (b & 0x7F) << shift;
+            if ((b & 0x80) == 0) {
+                return value;
+            }
+        }
+        throw new IOException("Malformed varint");
+    }
+
+    /**
+     * The terms of a session's segment and where their positions are,
+     * relative to the start of the positions in the file
+     */
+    private static class Segment {
+        final long positionsStart;
+        final String[] terms;
+        final int[] offsets;
+
+        Segment(long positionsStart, String[] terms, int[] offsets) {
+            this.positionsStart = positionsStart;
+            this.terms = terms;
+            this.offsets = offsets;
+        }
+    }
+}
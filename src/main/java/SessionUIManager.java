@@ -1,4 +1,6 @@
 import org.eclipse.swt.SWT;
+import org.eclipse.swt.custom.ExtendedModifyEvent;
+import org.eclipse.swt.custom.ExtendedModifyListener;
 import org.eclipse.swt.events.ModifyEvent;
 import org.eclipse.swt.events.ModifyListener;
 import org.eclipse.swt.events.SelectionAdapter;
@@ -7,11 +9,18 @@ import org.eclipse.swt.graphics.Point;
 import org.eclipse.swt.layout.GridData;
 import org.eclipse.swt.layout.GridLayout;
 import org.eclipse.swt.widgets.*;
+import java.util.ArrayList;
 import java.util.List;
 
 public class SessionUIManager {
     
     private SimpleMikuPad app;
+    private final Runnable autoSave = this::runAutoSave;
+    /** Time of the first change not saved yet, or -1 when everything is saved */
+    private long firstUnsavedChange = -1;
+    /** Incremented per search so results of an outdated query are dropped */
+    private int searchGeneration = 0;
+    private final Runnable search = this::runSearch;
     
     public SessionUIManager(SimpleMikuPad app) {
         this.app = app;
@@ -22,13 +31,21 @@ public class SessionUIManager {
     }
     
     private void setupEventListeners() {
-        // Session combo listener
-        app.getSessionCombo().addSelectionListener(new SelectionAdapter() {
-            @Override
-            public void widgetSelected(SelectionEvent e) {
-                switchToSelectedSession();
+        // Session picker: the list follows the session order itself, the button follows the current session
+        SessionPicker picker = app.getSessionPicker();
+        picker.setSelectionHandler(this::switchToSession);
+        picker.setFilterHandler(query -> {
+            // Search runs once typing pauses
+            app.getDisplay().timerExec(-1, search);
+            app.getDisplay().timerExec(Constants.SESSION_SEARCH_DELAY_MS, search);
+        });
+        app.getSessionManager().setListener((info, oldIndex, newIndex) -> {
+            picker.sessionMoved(info, oldIndex, newIndex);
+            if (info.getId().equals(app.getSessionManager().getCurrentSessionId()) && newIndex >= 0) {
+                picker.setCurrent(info);
             }
         });
+        picker.setSessions(app.getSessionManager().getAllSessions());
         
         // Session button listeners
         app.getNewSessionButton().addSelectionListener(new SelectionAdapter() {
@@ -73,6 +90,20 @@ public class SessionUIManager {
             }
         });
         
+        app.getExportAllButton().addSelectionListener(new SelectionAdapter() {
+            @Override
+            public void widgetSelected(SelectionEvent e) {
+                exportAllSessions();
+            }
+        });
+        
+        app.getImportAllButton().addSelectionListener(new SelectionAdapter() {
+            @Override
+            public void widgetSelected(SelectionEvent e) {
+                importAllSessions();
+            }
+        });
+        
         // Settings button
         app.getSettingsButton().addSelectionListener(new SelectionAdapter() {
             @Override
@@ -97,40 +128,63 @@ public class SessionUIManager {
         app.getPromptText().addModifyListener(new ModifyListener() {
             @Override
             public void modifyText(ModifyEvent e) {
+                // Token metadata follows edits itself (see TokenManager), so it is kept here
                 autoSaveSessionState();
-                if (!app.isLoadingSession() && app.getGenerateButton().getEnabled()) {
-                    app.getTokenManager().clearTokenColoring();
-                }
+            }
+        });
+        
+        // Journal every prompt edit so it survives a crash before the next save
+        app.getPromptText().addExtendedModifyListener(new ExtendedModifyListener() {
+            @Override
+            public void modifyText(ExtendedModifyEvent e) {
+                if (app.isLoadingSession() || app.getSessionJournal() == null) return;
+                String inserted = e.length > 0 ? app.getPromptText().getTextRange(e.start, e.length) : "";
+                app.getSessionJournal().recordEdit(e.start, e.replacedText.length(), inserted);
             }
         });
     }
     
     public void loadCurrentSession() {
-        refreshSessionCombo();
+        refreshSessionPicker();
         loadSessionIntoUI(app.getSessionManager().getCurrentSession());
     }
     
-    public void refreshSessionCombo() {
-        app.getSessionCombo().removeAll();
-        List<Session> sessions = app.getSessionManager().getAllSessions();
-        Session currentSession = app.getSessionManager().getCurrentSession();
-        
-        int selectedIndex = 0;
-        for (int i = 0; i < sessions.size(); i++) {
-            Session session = sessions.get(i);
-            app.getSessionCombo().add(session.toString());
-            if (session.getId().equals(currentSession.getId())) {
-                selectedIndex = i;
-            }
+    /**
+     * Shows the current session on the picker. The list itself is kept up
+     * to date through the session manager's listener.
+     */
+    public void refreshSessionPicker() {
+        SessionManager sessionManager = app.getSessionManager();
+        app.getSessionPicker().setCurrent(sessionManager.getSessionInfo(sessionManager.getCurrentSessionId()));
+        app.getDeleteSessionButton().setEnabled(sessionManager.getAllSessions().size() > 1);
+    }
+    
+    private void runSearch() {
+        SessionPicker picker = app.getSessionPicker();
+        String query = picker.getFilterText();
+        int generation = ++searchGeneration;
+        if (query.trim().isEmpty()) {
+            picker.setFilter(null);
+            return;
         }
         
-        app.getSessionCombo().select(selectedIndex);
-        app.getDeleteSessionButton().setEnabled(sessions.size() > 1);
+        app.getSessionManager().searchSessions(query, matches -> {
+            if (app.getDisplay().isDisposed()) return;
+            app.getDisplay().asyncExec(() -> {
+                if (generation != searchGeneration || app.getShell().isDisposed()) return;
+                picker.setFilter(matches);
+                app.updateStatus(matches.size() + " of " + app.getSessionManager().getAllSessions().size() + " sessions match");
+            });
+        });
     }
     
     public void loadSessionIntoUI(Session session) {
         if (session == null) return;
         
+        if (app.getSessionJournal() != null) {
+            app.getSessionJournal().close();
+        }
+        
         app.setLoadingSession(true);
         try {
             app.getEndpointText().setText(session.getEndpoint());
@@ -139,46 +193,96 @@ public class SessionUIManager {
             app.getPromptText().setText(session.getPromptText());
             
             updateSettingsLabel();
-            app.getTokenManager().clearTokenColoring();
+            app.getTokenManager().loadTokenData(session.getId());
+            restoreUndoHistory(session);
+            if (app.getVersionHistory() != null) {
+                app.getVersionHistory().reset(session.getId());
+            }
             app.updateStatus("Loaded session: " + session.getName());
         } finally {
             app.setLoadingSession(false);
         }
+        
+        // Edits after the last save are replayed like normal edits, so tokens, undo and autosave follow them
+        SessionJournal journal = new SessionJournal(session.getId(), session.getJournalSeq());
+        app.setSessionJournal(journal);
+        int recovered = journal.replay(app.getPromptText());
+        if (recovered > 0) {
+            app.updateStatus("Loaded session: " + session.getName() + " (recovered " + recovered + " unsaved edits)");
+        }
     }
     
     public void saveCurrentSessionState() {
         if (app.isLoadingSession()) return;
         
+        cancelAutoSave();
         Session currentSession = app.getSessionManager().getCurrentSession();
         if (currentSession != null && !app.getEndpointText().isDisposed()) {
             currentSession.setEndpoint(app.getEndpointText().getText());
             currentSession.setApiKey(app.getApiKeyText().getText());
             currentSession.setModel(app.getModelText().getText());
             currentSession.setPromptText(app.getPromptText().getText());
+            SessionJournal journal = app.getSessionJournal();
+            if (journal != null) {
+                currentSession.setJournalSeq(journal.getLastSeq());
+            }
             
             app.getSessionManager().saveCurrentState();
+            if (journal != null) {
+                SessionManager sessionManager = app.getSessionManager();
+                String sessionId = currentSession.getId();
+                journal.sessionSaved(currentSession.getJournalSeq(),
+                    () -> sessionManager.awaitSessionSaved(sessionId, Constants.SESSION_WRITE_TIMEOUT_MS));
+            }
+            app.getTokenManager().saveTokenData();
+            if (app.getUndoManager() != null && app.getUndoHistoryStore() != null) {
+                app.getUndoHistoryStore().save(app.getUndoManager(), app.getPromptText().getText());
+            }
         }
     }
     
-    private void autoSaveSessionState() {
-        app.getDisplay().timerExec(500, () -> saveCurrentSessionState());
+    /**
+     * Schedules a save once edits pause, but no later than the max wait after
+     * the first unsaved change. While a generation is running nothing is
+     * scheduled; the save when it ends covers the streamed text.
+     */
+    public void autoSaveSessionState() {
+        if (app.isLoadingSession()) return;
+        
+        long now = System.currentTimeMillis();
+        if (firstUnsavedChange < 0) {
+            firstUnsavedChange = now;
+        }
+        if (app.getUndoManager() != null && app.getUndoManager().isInCompoundChange()) {
+            app.getDisplay().timerExec(-1, autoSave);
+            return;
+        }
+        long delay = Math.min(Constants.AUTO_SAVE_DELAY_MS, firstUnsavedChange + Constants.AUTO_SAVE_MAX_WAIT_MS - now);
+        app.getDisplay().timerExec(-1, autoSave);
+        app.getDisplay().timerExec((int) Math.max(0, delay), autoSave);
+    }
+    
+    private void runAutoSave() {
+        if (app.getDisplay().isDisposed() || app.getPromptText().isDisposed()) return;
+        if (app.getUndoManager() != null && app.getUndoManager().isInCompoundChange()) return;
+        saveCurrentSessionState();
+    }
+    
+    private void cancelAutoSave() {
+        firstUnsavedChange = -1;
+        if (!app.getDisplay().isDisposed()) {
+            app.getDisplay().timerExec(-1, autoSave);
+        }
     }
     
-    private void switchToSelectedSession() {
+    private void switchToSession(String sessionId) {
         if (app.isLoadingSession()) return;
+        if (sessionId.equals(app.getSessionManager().getCurrentSessionId())) return;
         
         saveCurrentSessionState();
-        
-        int selectedIndex = app.getSessionCombo().getSelectionIndex();
-        if (selectedIndex >= 0) {
-            List<Session> sessions = app.getSessionManager().getAllSessions();
-            if (selectedIndex < sessions.size()) {
-                Session selectedSession = sessions.get(selectedIndex);
-                app.getSessionManager().setCurrentSession(selectedSession.getId());
-                resetUndoHistory();
-                loadSessionIntoUI(selectedSession);
-            }
-        }
+        app.getSessionManager().setCurrentSession(sessionId);
+        refreshSessionPicker();
+        loadSessionIntoUI(app.getSessionManager().getCurrentSession());
     }
     
     private void createNewSession() {
@@ -187,8 +291,7 @@ public class SessionUIManager {
             saveCurrentSessionState();
             Session newSession = app.getSessionManager().createSession(name);
             app.getSessionManager().setCurrentSession(newSession.getId());
-            resetUndoHistory();
-            refreshSessionCombo();
+            refreshSessionPicker();
             loadSessionIntoUI(newSession);
         }
     }
@@ -202,8 +305,9 @@ public class SessionUIManager {
             
             if (messageBox.open() == SWT.YES) {
                 if (app.getSessionManager().deleteSession(currentSession.getId())) {
-                    resetUndoHistory();
-                    refreshSessionCombo();
+                    app.getSessionJournal().discard();
+                    app.setSessionJournal(null);
+                    refreshSessionPicker();
                     loadSessionIntoUI(app.getSessionManager().getCurrentSession());
                     app.updateStatus("Deleted session: " + currentSession.getName());
                 }
@@ -217,7 +321,7 @@ public class SessionUIManager {
             String newName = promptForSessionName(currentSession.getName());
             if (newName != null && !newName.equals(currentSession.getName())) {
                 app.getSessionManager().renameSession(currentSession.getId(), newName);
-                refreshSessionCombo();
+                refreshSessionPicker();
                 app.updateStatus("Renamed session to: " + newName);
             }
         }
@@ -230,8 +334,7 @@ public class SessionUIManager {
             Session clonedSession = app.getSessionManager().cloneSession(currentSession.getId());
             if (clonedSession != null) {
                 app.getSessionManager().setCurrentSession(clonedSession.getId());
-                resetUndoHistory();
-                refreshSessionCombo();
+                refreshSessionPicker();
                 loadSessionIntoUI(clonedSession);
                 app.updateStatus("Cloned session: " + clonedSession.getName());
             }
@@ -273,8 +376,7 @@ public class SessionUIManager {
             try {
                 Session importedSession = app.getSessionManager().importSession(new java.io.File(filename));
                 app.getSessionManager().setCurrentSession(importedSession.getId());
-                resetUndoHistory();
-                refreshSessionCombo();
+                refreshSessionPicker();
                 loadSessionIntoUI(importedSession);
                 app.updateStatus("Imported session: " + importedSession.getName());
             } catch (Exception e) {
@@ -286,6 +388,181 @@ public class SessionUIManager {
         }
     }
     
+    private void exportAllSessions() {
+        saveCurrentSessionState();
+        
+        FileDialog dialog = new FileDialog(app.getShell(), SWT.SAVE);
+        dialog.setFilterExtensions(new String[]{"*" + Constants.SESSION_ARCHIVE_EXTENSION});
+        dialog.setFilterNames(new String[]{"Zip Archives (*" + Constants.SESSION_ARCHIVE_EXTENSION + ")"});
+        dialog.setFileName("sessions" + Constants.SESSION_ARCHIVE_EXTENSION);
+        
+        String filename = dialog.open();
+        if (filename == null) return;
+        
+        // Ids are taken here; the sessions themselves are read on the worker thread
+        List<String> sessionIds = new ArrayList<>();
+        for (SessionInfo info : app.getSessionManager().getAllSessions()) {
+            sessionIds.add(info.getId());
+        }
+        SessionManager sessionManager = app.getSessionManager();
+        runArchiveJob("Export Sessions", new ArchiveJob() {
+            private int exported;
+            
+            @Override
+            void run() throws Exception {
+                exported = sessionManager.exportSessions(sessionIds, new java.io.File(filename), this);
+            }
+            
+            @Override
+            void finish(Exception error) {
+                if (error != null) {
+                    showError("Export Error", "Failed to export sessions: " + error.getMessage());
+                } else if (exported < 0) {
+                    app.updateStatus("Export cancelled");
+                } else {
+                    app.updateStatus("Exported " + exported + " sessions to: " + filename);
+                }
+            }
+        });
+    }
+    
+    private void importAllSessions() {
+        FileDialog dialog = new FileDialog(app.getShell(), SWT.OPEN);
+        dialog.setFilterExtensions(new String[]{"*" + Constants.SESSION_ARCHIVE_EXTENSION});
+        dialog.setFilterNames(new String[]{"Zip Archives (*" + Constants.SESSION_ARCHIVE_EXTENSION + ")"});
+        
+        String filename = dialog.open();
+        if (filename == null) return;
+        
+        saveCurrentSessionState();
+        List<SessionInfo> existing = new ArrayList<>(app.getSessionManager().getAllSessions());
+        SessionManager sessionManager = app.getSessionManager();
+        runArchiveJob("Import Sessions", new ArchiveJob() {
+            private SessionManager.ArchiveImport imported;
+            
+            @Override
+            void run() throws Exception {
+                imported = sessionManager.importSessions(new java.io.File(filename), existing, this);
+            }
+            
+            @Override
+            void finish(Exception error) {
+                if (error != null) {
+                    showError("Import Error", "Failed to import sessions: " + error.getMessage());
+                } else if (imported == null) {
+                    app.updateStatus("Import cancelled");
+                } else {
+                    sessionManager.addImportedSessions(imported);
+                    refreshSessionPicker();
+                    app.updateStatus("Imported " + imported.getSessions().size() + " sessions ("
+                        + imported.getDuplicates() + " already present)");
+                }
+            }
+        });
+    }
+    
+    /**
+     * A bulk export or import: run on a worker thread, then finished on the
+     * UI thread with the exception it threw, if any
+     */
+    private abstract static class ArchiveJob implements SessionManager.ArchiveProgress {
+        private volatile boolean cancelled = false;
+        private Display display;
+        private ProgressBar progressBar;
+        private Label progressLabel;
+        
+        abstract void run() throws Exception;
+        
+        abstract void finish(Exception error);
+        
+        @Override
+        public boolean isCancelled() {
+            return cancelled;
+        }
+        
+        @Override
+        public void worked(int done, int total) {
+            if (display.isDisposed()) return;
+            display.asyncExec(() -> {
+                if (progressBar.isDisposed()) return;
+                progressBar.setMaximum(Math.max(1, total));
+                progressBar.setSelection(done);
+                progressLabel.setText(done + " of " + total + " sessions");
+            });
+        }
+    }
+    
+    /**
+     * Runs the job on a worker thread behind a modal progress dialog. Cancel
+     * (or closing the dialog) asks the job to stop; the dialog stays until it has.
+     */
+    private void runArchiveJob(String title, ArchiveJob job) {
+        Shell dialog = new Shell(app.getShell(), SWT.DIALOG_TRIM | SWT.APPLICATION_MODAL);
+        dialog.setText(title);
+        dialog.setLayout(new GridLayout(1, false));
+        
+        Label label = new Label(dialog, SWT.NONE);
+        label.setText("Starting...");
+        label.setLayoutData(new GridData(SWT.FILL, SWT.CENTER, true, false));
+        
+        ProgressBar progressBar = new ProgressBar(dialog, SWT.SMOOTH);
+        progressBar.setLayoutData(new GridData(SWT.FILL, SWT.CENTER, true, false));
+        
+        Button cancelButton = new Button(dialog, SWT.PUSH);
+        cancelButton.setText("Cancel");
+        cancelButton.setLayoutData(new GridData(SWT.END, SWT.CENTER, false, false));
+        
+        Runnable cancel = () -> {
+            job.cancelled = true;
+            cancelButton.setEnabled(false);
+            label.setText("Cancelling...");
+        };
+        cancelButton.addListener(SWT.Selection, e -> cancel.run());
+        dialog.addListener(SWT.Close, e -> {
+            e.doit = false;
+            cancel.run();
+        });
+        
+        job.display = app.getDisplay();
+        job.progressBar = progressBar;
+        job.progressLabel = label;
+        
+        dialog.setSize(350, 130);
+        Point parentSize = app.getShell().getSize();
+        Point parentLocation = app.getShell().getLocation();
+        dialog.setLocation(parentLocation.x + (parentSize.x - 350) / 2, parentLocation.y + (parentSize.y - 130) / 2);
+        dialog.open();
+        
+        Display display = app.getDisplay();
+        Thread worker = new Thread(() -> {
+            Exception error = null;
+            try {
+                job.run();
+            } catch (Exception e) {
+                error = e;
+            }
+            Exception result = error;
+            if (display.isDisposed()) return;
+            display.asyncExec(() -> {
+                if (!dialog.isDisposed()) {
+                    dialog.dispose();
+                }
+                if (!app.getShell().isDisposed()) {
+                    job.finish(result);
+                }
+            });
+        }, "session-archive");
+        worker.setDaemon(true);
+        worker.start();
+    }
+    
+    private void showError(String title, String message) {
+        MessageBox messageBox = new MessageBox(app.getShell(), SWT.ERROR | SWT.OK);
+        messageBox.setMessage(message);
+        messageBox.setText(title);
+        messageBox.open();
+    }
+    
     private void openSettingsDialog() {
         Session currentSession = app.getSessionManager().getCurrentSession();
         if (currentSession != null) {
@@ -310,10 +587,15 @@ public class SessionUIManager {
     }
     
     /**
-     * Resets the undo history - called when switching session contexts
+     * Swaps in the undo history of the session, after its text has been set
+     * so that loading the text is not itself recorded as an edit
      */
-    private void resetUndoHistory() {
-        app.getUndoManager().reset();
+    private void restoreUndoHistory(Session session) {
+        if (app.getUndoManager() == null) return;
+        
+        UndoHistoryStore store = new UndoHistoryStore(session.getId());
+        store.load(app.getUndoManager(), app.getPromptText().getText());
+        app.setUndoHistoryStore(store);
     }
     
     private String promptForSessionName(String defaultName) {
@@ -0,0 +1,253 @@
+import com.google.gson.Gson;
+import com.google.gson.JsonObject;
+import com.google.gson.stream.JsonWriter;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Reader;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Writes session files on a single background thread.
+ * Callers hand over the content to write and return immediately; it is
+ * streamed to the file as JSON, so no complete text or tree of the file is
+ * built in memory. Requests for the same file that arrive before the writer
+ * gets to it are coalesced, so a burst of saves ends in one write of the
+ * latest content. Every file is written to a temp file, synced to disk and
+ * then renamed over the target, so a crash leaves either the old or the new
+ * file, never a partial one.
+ * <p>
+ * Files can be written gzip-compressed; readers tell the formats apart by
+ * the gzip magic bytes (see {@link #openReader}).
+ */
+public class SessionWriter {
+
+    /**
+     * Content that can stream itself as JSON. Once queued it must not change.
+     */
+    public interface Content {
+        void writeJson(JsonWriter out) throws IOException;
+    }
+
+    /** Marks a pending deletion in the queue */
+    private static final Content DELETE = out -> { };
+
+    private final Gson gson = new Gson();
+    private final Map<File, Content> pending = new LinkedHashMap<>();
+    /** Queued files to be written compressed */
+    private final Set<File> compressed = new HashSet<>();
+    /** Files whose latest write failed, so the file on disk is older than what was queued */
+    private final Set<File> failed = new HashSet<>();
+    private final Object lock = new Object();
+    private final Thread thread;
+    /** The entry being written, or null when idle */
+    private Map.Entry<File, Content> writing = null;
+    private boolean running = true;
+
+    public SessionWriter() {
+        thread = new Thread(this::run, "session-writer");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    /**
+     * Queues the JSON to be written to the file, replacing any queued content
+     */
+    public void write(File file, JsonObject json) {
+        write(file, out -> gson.toJson(json, out), false);
+    }
+
+    /**
+     * Queues the content to be written to the file, gzip-compressed if asked,
+     * replacing any queued content
+     */
+    public void write(File file, Content content, boolean compress) {
+        synchronized (lock) {
+            pending.remove(file);
+            pending.put(file, content);
+            if (compress) {
+                compressed.add(file);
+            } else {
+                compressed.remove(file);
+            }
+            lock.notifyAll();
+        }
+    }
+
+    /**
+     * Queues the deletion of the file after any writes queued before it
+     */
+    public void delete(File file) {
+        write(file, DELETE, false);
+    }
+
+    /**
+     * Returns the content queued or being written for the file, which is
+     * newer than what is on disk, or null if there is none
+     */
+    public Content getQueued(File file) {
+        synchronized (lock) {
+            Content content = pending.get(file);
+            if (content == null && writing != null && writing.getKey().equals(file)) {
+                content = writing.getValue();
+            }
+            return content == DELETE ? null : content;
+        }
+    }
+
+    /**
+     * Waits until everything queued so far is on disk, at most the given time.
+     * Returns false if the timeout expired first.
+     */
+    public boolean flush(long timeoutMillis) {
+        long deadline = System.currentTimeMillis() + timeoutMillis;
+        synchronized (lock) {
+            while (!pending.isEmpty() || writing != null) {
+                long remaining = deadline - System.currentTimeMillis();
+                if (remaining <= 0) {
+                    return false;
+                }
+                try {
+                    lock.wait(remaining);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    return false;
+                }
+            }
+            return true;
+        }
+    }
+
+    /**
+     * Waits like {@link #flush(long)} and then returns whether the latest
+     * write of the file succeeded. A write that failed is only logged, so
+     * the queue draining does not by itself mean the content reached the disk.
+     */
+    public boolean flush(File file, long timeoutMillis) {
+        if (!flush(timeoutMillis)) {
+            return false;
+        }
+        synchronized (lock) {
+            return !failed.contains(file);
+        }
+    }
+
+    /**
+     * Flushes pending writes within the timeout and stops the writer thread
+     */
+    public void shutdown(long timeoutMillis) {
+        if (!flush(timeoutMillis)) {
+            System.err.println("Timed out waiting for session files to be written");
+        }
+        synchronized (lock) {
+            running = false;
+            lock.notifyAll();
+        }
+    }
+
+    private void run() {
+        while (true) {
+            Map.Entry<File, Content> next;
+            boolean compress;
+            synchronized (lock) {
+                while (running && pending.isEmpty()) {
+                    try {
+                        lock.wait();
+                    } catch (InterruptedException e) {
+                        return;
+                    }
+                }
+                if (pending.isEmpty()) {
+                    return;
+                }
+                File file = pending.keySet().iterator().next();
+                next = Map.entry(file, pending.remove(file));
+                compress = compressed.remove(file);
+                writing = next;
+            }
+
+            boolean succeeded = false;
+            try {
+                if (next.getValue() == DELETE) {
+                    Files.deleteIfExists(next.getKey().toPath());
+                } else {
+                    writeAtomically(next.getKey(), next.getValue(), compress);
+                }
+                succeeded = true;
+            } catch (IOException e) {
+                System.err.println("Failed to write " + next.getKey().getName() + ": " + e.getMessage());
+            } finally {
+                synchronized (lock) {
+                    if (succeeded) {
+                        failed.remove(next.getKey());
+                    } else {
+                        failed.add(next.getKey());
+                    }
+                    writing = null;
+                    lock.notifyAll();
+                }
+            }
+        }
+    }
+
+    /**
+     * Opens a file written by this class for reading, decompressing it if it
+     * starts with the gzip magic bytes
+     */
+    public static Reader openReader(File file) throws IOException {
+        InputStream in = new BufferedInputStream(new FileInputStream(file), Constants.SESSION_IO_BUFFER_SIZE);
+        in.mark(2);
+        boolean gzip = in.read() == (GZIPInputStream.GZIP_MAGIC & 0xFF) && in.read() == (GZIPInputStream.GZIP_MAGIC >>> 8);
+        in.reset();
+        if (gzip) {
+            in = new GZIPInputStream(in, Constants.SESSION_IO_BUFFER_SIZE);
+        }
+        return new InputStreamReader(in, StandardCharsets.UTF_8);
+    }
+
+    private void writeAtomically(File file, Content content, boolean compress) throws IOException {
+        file.getParentFile().mkdirs();
+        File tempFile = new File(file.getPath() + ".tmp");
+        try (FileOutputStream out = new FileOutputStream(tempFile)) {
+            // The JSON is encoded and compressed as it is written, without building the whole text first
+            OutputStream stream = compress ? new GZIPOutputStream(out, Constants.SESSION_IO_BUFFER_SIZE) : out;
+            // Closing the writer also closes the gzip stream, which frees its native deflater
+            try (Writer writer = new BufferedWriter(new OutputStreamWriter(stream, StandardCharsets.UTF_8),
+                    Constants.SESSION_IO_BUFFER_SIZE)) {
+                JsonWriter jsonWriter = new JsonWriter(writer);
+                content.writeJson(jsonWriter);
+                jsonWriter.flush();
+                if (compress) {
+                    ((GZIPOutputStream) stream).finish();
+                }
+                out.getFD().sync();
+            }
+        } catch (IOException | RuntimeException e) {
+            tempFile.delete();
+            throw e;
+        }
+        try {
+            Files.move(tempFile.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (AtomicMoveNotSupportedException e) {
+            Files.move(tempFile.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING);
+        }
+    }
+}
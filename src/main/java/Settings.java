@@ -58,6 +58,10 @@ public class Settings {
     private String bannedTokens = Constants.DEFAULT_BANNED_TOKENS;
     private boolean ignoreEos = Constants.DEFAULT_IGNORE_EOS;
     
+    // Token probability display (controls n_probs, not sent as sampler parameters)
+    private int tokenAlternatives = Constants.DEFAULT_TOKEN_ALTERNATIVES_COUNT;
+    private double alternativesThreshold = Constants.DEFAULT_ALTERNATIVES_THRESHOLD;
+    
     // Instruction template settings
     private String templateName = Constants.DEFAULT_TEMPLATE_NAME;
     private String templateSysPrefix = Constants.DEFAULT_TEMPLATE_SYS_PREFIX;
@@ -84,6 +88,8 @@ public class Settings {
     private boolean xtcEnabled = Constants.DEFAULT_XTC_ENABLED;
     private boolean dryEnabled = Constants.DEFAULT_DRY_ENABLED;
     private boolean maxTokensEnabled = Constants.DEFAULT_MAX_TOKENS_ENABLED;
+    private boolean tokenAlternativesEnabled = Constants.DEFAULT_TOKEN_ALTERNATIVES_ENABLED;
+    private boolean alternativesThresholdEnabled = Constants.DEFAULT_ALTERNATIVES_THRESHOLD_ENABLED;
     
     public Settings() {
         // Default constructor with sensible defaults
@@ -128,6 +134,10 @@ public class Settings {
         this.bannedTokens = other.bannedTokens;
         this.ignoreEos = other.ignoreEos;
         
+        // Copy token probability display settings
+        this.tokenAlternatives = other.tokenAlternatives;
+        this.alternativesThreshold = other.alternativesThreshold;
+        
         // Copy template settings
         this.templateName = other.templateName;
         this.templateSysPrefix = other.templateSysPrefix;
@@ -154,6 +164,8 @@ public class Settings {
         this.xtcEnabled = other.xtcEnabled;
         this.dryEnabled = other.dryEnabled;
         this.maxTokensEnabled = other.maxTokensEnabled;
+        this.tokenAlternativesEnabled = other.tokenAlternativesEnabled;
+        this.alternativesThresholdEnabled = other.alternativesThresholdEnabled;
     }
     
     /**
@@ -373,6 +385,10 @@ public class Settings {
         if (json.has("bannedTokens")) params.bannedTokens = json.get("bannedTokens").getAsString();
         if (json.has("ignoreEos")) params.ignoreEos = json.get("ignoreEos").getAsBoolean();
         
+        // Load token probability display settings
+        if (json.has("tokenAlternatives")) params.tokenAlternatives = json.get("tokenAlternatives").getAsInt();
+        if (json.has("alternativesThreshold")) params.alternativesThreshold = json.get("alternativesThreshold").getAsDouble();
+        
         // Load template settings - only load field values if it's a custom template
         if (json.has("templateName")) params.templateName = json.get("templateName").getAsString();
         
@@ -413,6 +429,8 @@ public class Settings {
         if (json.has("xtcEnabled")) params.xtcEnabled = json.get("xtcEnabled").getAsBoolean();
         if (json.has("dryEnabled")) params.dryEnabled = json.get("dryEnabled").getAsBoolean();
         if (json.has("maxTokensEnabled")) params.maxTokensEnabled = json.get("maxTokensEnabled").getAsBoolean();
+        if (json.has("tokenAlternativesEnabled")) params.tokenAlternativesEnabled = json.get("tokenAlternativesEnabled").getAsBoolean();
+        if (json.has("alternativesThresholdEnabled")) params.alternativesThresholdEnabled = json.get("alternativesThresholdEnabled").getAsBoolean();
         
         return params;
     }
@@ -459,6 +477,10 @@ public class Settings {
         json.addProperty("bannedTokens", bannedTokens);
         json.addProperty("ignoreEos", ignoreEos);
         
+        // Save token probability display settings
+        json.addProperty("tokenAlternatives", tokenAlternatives);
+        json.addProperty("alternativesThreshold", alternativesThreshold);
+        
         // Save template settings - only save field values for custom templates
         json.addProperty("templateName", templateName);
         
@@ -489,6 +511,8 @@ public class Settings {
         json.addProperty("xtcEnabled", xtcEnabled);
         json.addProperty("dryEnabled", dryEnabled);
         json.addProperty("maxTokensEnabled", maxTokensEnabled);
+        json.addProperty("tokenAlternativesEnabled", tokenAlternativesEnabled);
+        json.addProperty("alternativesThresholdEnabled", alternativesThresholdEnabled);
         
         return json;
     }
@@ -638,6 +662,13 @@ public class Settings {
     public boolean isIgnoreEos() { return ignoreEos; }
     public void setIgnoreEos(boolean ignoreEos) { this.ignoreEos = ignoreEos; }
     
+    // Token probability display getters and setters
+    public int getTokenAlternatives() { return tokenAlternatives; }
+    public void setTokenAlternatives(int tokenAlternatives) { this.tokenAlternatives = tokenAlternatives; }
+    
+    public double getAlternativesThreshold() { return alternativesThreshold; }
+    public void setAlternativesThreshold(double alternativesThreshold) { this.alternativesThreshold = alternativesThreshold; }
+    
     // Enabled flag getters and setters
     public boolean isSeedEnabled() { return seedEnabled; }
     public void setSeedEnabled(boolean enabled) { this.seedEnabled = enabled; }
@@ -690,6 +721,12 @@ public class Settings {
     public boolean isMaxTokensEnabled() { return maxTokensEnabled; }
     public void setMaxTokensEnabled(boolean enabled) { this.maxTokensEnabled = enabled; }
     
+    public boolean isTokenAlternativesEnabled() { return tokenAlternativesEnabled; }
+    public void setTokenAlternativesEnabled(boolean enabled) { this.tokenAlternativesEnabled = enabled; }
+    
+    public boolean isAlternativesThresholdEnabled() { return alternativesThresholdEnabled; }
+    public void setAlternativesThresholdEnabled(boolean enabled) { this.alternativesThresholdEnabled = enabled; }
+    
     // Template getters and setters
     public String getTemplateName() { return templateName; }
     public void setTemplateName(String templateName) { this.templateName = templateName; }
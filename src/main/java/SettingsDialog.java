@@ -48,6 +48,10 @@ public class SettingsDialog {
     private Text drySequenceBreakersText;
     private ParameterControl dryPenaltyLastNControl;
     
+    // Token probability controls
+    private ParameterControl tokenAlternativesControl;
+    private ParameterControl alternativesThresholdControl;
+    
     // Advanced constraint controls
     private Text grammarText;
     private Text jsonSchemaText;
@@ -250,6 +254,15 @@ public class SettingsDialog {
         // Set initial state
         penalizeNlCheck.setForeground(shell.getDisplay().getSystemColor(SWT.COLOR_WIDGET_DISABLED_FOREGROUND));
         
+        Group probabilitiesGroup = new Group(content, SWT.NONE);
+        probabilitiesGroup.setText("Token Probabilities");
+        probabilitiesGroup.setLayout(new GridLayout(1, false));
+        probabilitiesGroup.setLayoutData(new GridData(SWT.FILL, SWT.TOP, true, false));
+        
+        tokenAlternativesControl = new ParameterControl(probabilitiesGroup, "Alternatives", Constants.DEFAULT_TOKEN_ALTERNATIVES_COUNT, Constants.TOKEN_ALTERNATIVES_MIN, Constants.TOKEN_ALTERNATIVES_MAX, Constants.DEFAULT_TOKEN_ALTERNATIVES_ENABLED);
+        alternativesThresholdControl = new ParameterControl(probabilitiesGroup, "Only Below Probability", Constants.DEFAULT_ALTERNATIVES_THRESHOLD, Constants.ALTERNATIVES_THRESHOLD_MIN, Constants.ALTERNATIVES_THRESHOLD_MAX, 2, Constants.DEFAULT_ALTERNATIVES_THRESHOLD_ENABLED);
+        alternativesThresholdControl.setToolTipText("Keep alternatives only for tokens sampled below this probability");
+        
         setupChangeListener(seedControl);
         setupChangeListener(temperatureControl);
         setupChangeListener(maxTokensControl);
@@ -262,6 +275,8 @@ public class SettingsDialog {
         setupChangeListener(repeatLastNControl);
         setupChangeListener(presencePenaltyControl);
         setupChangeListener(frequencyPenaltyControl);
+        setupChangeListener(tokenAlternativesControl);
+        setupChangeListener(alternativesThresholdControl);
         
         scrolled.setContent(content);
         scrolled.setMinSize(content.computeSize(SWT.DEFAULT, SWT.DEFAULT));
@@ -679,6 +694,12 @@ public class SettingsDialog {
         frequencyPenaltyControl.setEnabled(settings.isFrequencyPenaltyEnabled());
         penalizeNlCheck.setSelection(settings.isPenalizeNl());
         
+        // Token probabilities
+        tokenAlternativesControl.setIntValue(settings.getTokenAlternatives());
+        tokenAlternativesControl.setEnabled(settings.isTokenAlternativesEnabled());
+        alternativesThresholdControl.setDoubleValue(settings.getAlternativesThreshold());
+        alternativesThresholdControl.setEnabled(settings.isAlternativesThresholdEnabled());
+        
         // Advanced tab
         typicalPControl.setDoubleValue(settings.getTypicalP());
         typicalPControl.setEnabled(settings.isTypicalPEnabled());
@@ -758,6 +779,12 @@ public class SettingsDialog {
         settings.setFrequencyPenaltyEnabled(frequencyPenaltyControl.isEnabled());
         settings.setPenalizeNl(penalizeNlCheck.getSelection());
         
+        // Token probabilities
+        settings.setTokenAlternatives(tokenAlternativesControl.getIntValue());
+        settings.setTokenAlternativesEnabled(tokenAlternativesControl.isEnabled());
+        settings.setAlternativesThreshold(alternativesThresholdControl.getDoubleValue());
+        settings.setAlternativesThresholdEnabled(alternativesThresholdControl.isEnabled());
+        
         // Advanced tab
         settings.setTypicalP(typicalPControl.getDoubleValue());
         settings.setTypicalPEnabled(typicalPControl.isEnabled());
@@ -807,7 +834,8 @@ public class SettingsDialog {
             repeatLastNControl, presencePenaltyControl, frequencyPenaltyControl,
             mirostatTauControl, mirostatEtaControl, dynatempRangeControl,
             dynatempExponentControl, xtcThresholdControl, xtcProbabilityControl,
-            dryMultiplierControl, dryBaseControl, dryAllowedLengthControl, dryPenaltyLastNControl
+            dryMultiplierControl, dryBaseControl, dryAllowedLengthControl, dryPenaltyLastNControl,
+            tokenAlternativesControl, alternativesThresholdControl
         };
         
         for (ParameterControl control : controls) {
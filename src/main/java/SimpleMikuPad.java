@@ -1,3 +1,4 @@
+import org.eclipse.swt.SWT;
 import org.eclipse.swt.widgets.Display;
 import org.eclipse.swt.widgets.Shell;
 import org.eclipse.swt.custom.StyledText;
@@ -17,8 +18,11 @@ public class SimpleMikuPad {
     private TokenManager tokenManager;
     private BaseGenerationManager generationManager;
     private TextOperationsManager textOperationsManager;
+    private VersionHistory versionHistory;
     
     private StyledTextUndoManager undoManager;
+    private UndoHistoryStore undoHistoryStore;
+    private SessionJournal sessionJournal;
     private SessionManager sessionManager;
     private HttpClientWrapper httpClient;
     
@@ -33,13 +37,16 @@ public class SimpleMikuPad {
     private Button cancelButton;
     private Label statusLabel;
     private Button colorToggleButton;
-    private Combo sessionCombo;
+    private Combo renderModeCombo;
+    private SessionPicker sessionPicker;
     private Button newSessionButton;
     private Button deleteSessionButton;
     private Button renameSessionButton;
     private Button cloneSessionButton;
     private Button exportSessionButton;
     private Button importSessionButton;
+    private Button exportAllButton;
+    private Button importAllButton;
     private Spinner fontSizeSpinner;
     private Combo fontNameCombo;
     private Button fontBoldButton;
@@ -62,6 +69,9 @@ public class SimpleMikuPad {
         createUI();
         loadCurrentSession();
         
+        // Save while the widgets still exist; cleanup runs after they are disposed
+        shell.addListener(SWT.Close, e -> sessionUIManager.saveCurrentSessionState());
+        
         shell.open();
         while (!shell.isDisposed()) {
             if (!display.readAndDispatch()) {
@@ -86,7 +96,6 @@ public class SimpleMikuPad {
     }
     
     private void initializeManagers() {
-        sessionUIManager = new SessionUIManager(this);
         tokenManager = new TokenManager(this);
         
         // Create the appropriate generation manager based on API type
@@ -99,6 +108,7 @@ public class SimpleMikuPad {
                 break;
         }
         textOperationsManager = new TextOperationsManager(this);
+        versionHistory = new VersionHistory(this);
     }
     
     private void createUI() {
@@ -114,6 +124,7 @@ public class SimpleMikuPad {
         tokenManager.setupEventListeners();
         generationManager.setupEventListeners();
         textOperationsManager.initializeContextMenu();
+        versionHistory.setupEventListeners();
     }
     
     private void loadCurrentSession() {
@@ -128,6 +139,17 @@ public class SimpleMikuPad {
             undoManager.dispose();
         }
         sessionUIManager.saveCurrentSessionState();
+        if (sessionJournal != null) {
+            sessionJournal.close();
+        }
+        if (!UndoHistoryStore.awaitWrites(Constants.UNDO_WRITE_TIMEOUT_MS)) {
+            System.err.println("Timed out writing undo history");
+        }
+        if (!VersionStore.awaitWrites(Constants.VERSIONS_WRITE_TIMEOUT_MS)) {
+            System.err.println("Timed out writing versions");
+        }
+        // Wait for queued session writes, but never hang on exit
+        sessionManager.close(Constants.SESSION_WRITE_TIMEOUT_MS);
         display.dispose();
     }
     
@@ -137,8 +159,14 @@ public class SimpleMikuPad {
     public SessionManager getSessionManager() { return sessionManager; }
     public HttpClientWrapper getHttpClient() { return httpClient; }
     public TokenManager getTokenManager() { return tokenManager; }
+    public SessionUIManager getSessionUIManager() { return sessionUIManager; }
     public StyledTextUndoManager getUndoManager() { return undoManager; }
+    public UndoHistoryStore getUndoHistoryStore() { return undoHistoryStore; }
+    public void setUndoHistoryStore(UndoHistoryStore undoHistoryStore) { this.undoHistoryStore = undoHistoryStore; }
+    public SessionJournal getSessionJournal() { return sessionJournal; }
+    public void setSessionJournal(SessionJournal sessionJournal) { this.sessionJournal = sessionJournal; }
     public BaseGenerationManager getGenerationManager() { return generationManager; }
+    public VersionHistory getVersionHistory() { return versionHistory; }
     
     // UI Component getters
     public StyledText getPromptText() { return promptText; }
@@ -151,13 +179,16 @@ public class SimpleMikuPad {
     public Button getCancelButton() { return cancelButton; }
     public Label getStatusLabel() { return statusLabel; }
     public Button getColorToggleButton() { return colorToggleButton; }
-    public Combo getSessionCombo() { return sessionCombo; }
+    public Combo getRenderModeCombo() { return renderModeCombo; }
+    public SessionPicker getSessionPicker() { return sessionPicker; }
     public Button getNewSessionButton() { return newSessionButton; }
     public Button getDeleteSessionButton() { return deleteSessionButton; }
     public Button getRenameSessionButton() { return renameSessionButton; }
     public Button getCloneSessionButton() { return cloneSessionButton; }
     public Button getExportSessionButton() { return exportSessionButton; }
     public Button getImportSessionButton() { return importSessionButton; }
+    public Button getExportAllButton() { return exportAllButton; }
+    public Button getImportAllButton() { return importAllButton; }
     public Spinner getFontSizeSpinner() { return fontSizeSpinner; }
     public Combo getFontNameCombo() { return fontNameCombo; }
     public Button getFontBoldButton() { return fontBoldButton; }
@@ -166,7 +197,7 @@ public class SimpleMikuPad {
     // UI Component setters
     public void setPromptText(StyledText promptText) { this.promptText = promptText; }
     public void initializeUndoManager() {
-        undoManager = new StyledTextUndoManager(promptText, 50);
+        undoManager = new StyledTextUndoManager(promptText, Constants.UNDO_HISTORY_BYTE_BUDGET);
     }
     
     public void setEndpointText(Text endpointText) { this.endpointText = endpointText; }
@@ -178,13 +209,16 @@ public class SimpleMikuPad {
     public void setCancelButton(Button cancelButton) { this.cancelButton = cancelButton; }
     public void setStatusLabel(Label statusLabel) { this.statusLabel = statusLabel; }
     public void setColorToggleButton(Button colorToggleButton) { this.colorToggleButton = colorToggleButton; }
-    public void setSessionCombo(Combo sessionCombo) { this.sessionCombo = sessionCombo; }
+    public void setRenderModeCombo(Combo renderModeCombo) { this.renderModeCombo = renderModeCombo; }
+    public void setSessionPicker(SessionPicker sessionPicker) { this.sessionPicker = sessionPicker; }
     public void setNewSessionButton(Button newSessionButton) { this.newSessionButton = newSessionButton; }
     public void setDeleteSessionButton(Button deleteSessionButton) { this.deleteSessionButton = deleteSessionButton; }
     public void setRenameSessionButton(Button renameSessionButton) { this.renameSessionButton = renameSessionButton; }
     public void setCloneSessionButton(Button cloneSessionButton) { this.cloneSessionButton = cloneSessionButton; }
     public void setExportSessionButton(Button exportSessionButton) { this.exportSessionButton = exportSessionButton; }
     public void setImportSessionButton(Button importSessionButton) { this.importSessionButton = importSessionButton; }
+    public void setExportAllButton(Button exportAllButton) { this.exportAllButton = exportAllButton; }
+    public void setImportAllButton(Button importAllButton) { this.importAllButton = importAllButton; }
     public void setFontSizeSpinner(Spinner fontSizeSpinner) { this.fontSizeSpinner = fontSizeSpinner; }
     public void setFontNameCombo(Combo fontNameCombo) { this.fontNameCombo = fontNameCombo; }
     public void setFontBoldButton(Button fontBoldButton) { this.fontBoldButton = fontBoldButton; }
@@ -1,20 +1,44 @@
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
 import java.util.ArrayList;
-import java.util.LinkedList;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
 
 import org.eclipse.swt.SWT;
+import org.eclipse.swt.custom.ExtendedModifyEvent;
+import org.eclipse.swt.custom.ExtendedModifyListener;
 import org.eclipse.swt.custom.StyledText;
 import org.eclipse.swt.events.KeyAdapter;
 import org.eclipse.swt.events.KeyEvent;
-import org.eclipse.swt.events.ModifyEvent;
-import org.eclipse.swt.events.ModifyListener;
 import org.eclipse.swt.events.MouseAdapter;
 import org.eclipse.swt.events.MouseEvent;
+import org.eclipse.swt.events.VerifyEvent;
+import org.eclipse.swt.events.VerifyListener;
 import org.eclipse.swt.graphics.Point;
 import org.eclipse.swt.widgets.Display;
 
 public class StyledTextUndoManager {
 
+    /** Rough fixed cost of one change object, counted against the history budget */
+    private static final long CHANGE_OVERHEAD_BYTES = 64;
+
+    /** History log record holding one change */
+    private static final int RECORD_CHANGE = 1;
+    /** History log record holding the ids on both stacks */
+    private static final int RECORD_STATE = 2;
+
+    private static final int CHANGE_SIMPLE = 0;
+    private static final int CHANGE_COMPOUND = 1;
+
     /**
      * Represents an undo-able text change.
      */
@@ -29,6 +53,18 @@ public class StyledTextUndoManager {
         protected String fPreservedText;
         /** The undo manager that generated the change. */
         protected StyledTextUndoManager fUndoManager;
+        /** Whether fText and fPreservedText are currently held deflated. */
+        protected boolean fCompressed = false;
+        /** The deflated inserted text (null if fText was null). */
+        protected byte[] fCompressedText;
+        /** The deflated replaced text (null if fPreservedText was null). */
+        protected byte[] fCompressedPreservedText;
+        /** The size this change was last accounted with in the history budget. */
+        protected long fAccountedBytes = 0;
+        /** Identifies the change in the history log; 0 until it is pushed. */
+        protected long fId = 0;
+        /** Whether the change differs from what was last written to the history log. */
+        protected boolean fModified = true;
 
         /**
          * Creates a new text change.
@@ -43,6 +79,97 @@ public class StyledTextUndoManager {
         protected void reinitialize() {
             fStart = fEnd = -1;
             fText = fPreservedText = null;
+            fCompressed = false;
+            fCompressedText = fCompressedPreservedText = null;
+            fModified = true;
+        }
+
+        /**
+         * Estimates the memory held by this change.
+         */
+        protected long getByteSize() {
+            if (fCompressed) {
+                return CHANGE_OVERHEAD_BYTES + byteLength(fCompressedText) + byteLength(fCompressedPreservedText);
+            }
+            return CHANGE_OVERHEAD_BYTES + 2L * (charLength(fText) + charLength(fPreservedText));
+        }
+
+        /**
+         * Deflates the texts of this change if they are large enough to be worth it.
+         */
+        protected void compress() {
+            if (fCompressed || 2L * (charLength(fText) + charLength(fPreservedText)) < Constants.UNDO_COMPRESSION_THRESHOLD_BYTES) {
+                return;
+            }
+            fCompressedText = deflate(fText);
+            fCompressedPreservedText = deflate(fPreservedText);
+            fText = fPreservedText = null;
+            fCompressed = true;
+        }
+
+        /**
+         * Copies the fields that {@link #write(DataOutputStream)} writes. The
+         * texts are shared, as they are never changed in place.
+         */
+        protected UndoableTextChange copy() {
+            UndoableTextChange c = new UndoableTextChange(fUndoManager);
+            c.fStart = fStart;
+            c.fEnd = fEnd;
+            c.fText = fText;
+            c.fPreservedText = fPreservedText;
+            c.fCompressed = fCompressed;
+            c.fCompressedText = fCompressedText;
+            c.fCompressedPreservedText = fCompressedPreservedText;
+            c.fId = fId;
+            return c;
+        }
+
+        /**
+         * Writes this change to a history log.
+         */
+        protected void write(DataOutputStream out) throws IOException {
+            out.writeByte(CHANGE_SIMPLE);
+            out.writeInt(fStart);
+            out.writeInt(fEnd);
+            out.writeBoolean(fCompressed);
+            if (fCompressed) {
+                writeBytes(out, fCompressedText);
+                writeBytes(out, fCompressedPreservedText);
+            } else {
+                writeBytes(out, fText == null ? null : fText.getBytes(StandardCharsets.UTF_8));
+                writeBytes(out, fPreservedText == null ? null : fPreservedText.getBytes(StandardCharsets.UTF_8));
+            }
+        }
+
+        /**
+         * Reads the fields written by {@link #write(DataOutputStream)} after the type byte.
+         */
+        protected void read(DataInputStream in) throws IOException {
+            fStart = in.readInt();
+            fEnd = in.readInt();
+            fCompressed = in.readBoolean();
+            byte[] text = readBytes(in);
+            byte[] preservedText = readBytes(in);
+            if (fCompressed) {
+                fCompressedText = text;
+                fCompressedPreservedText = preservedText;
+            } else {
+                fText = text == null ? null : new String(text, StandardCharsets.UTF_8);
+                fPreservedText = preservedText == null ? null : new String(preservedText, StandardCharsets.UTF_8);
+            }
+        }
+
+        /**
+         * Restores the texts of this change if they are held deflated.
+         */
+        protected void decompress() {
+            if (!fCompressed) {
+                return;
+            }
+            fText = inflate(fCompressedText);
+            fPreservedText = inflate(fCompressedPreservedText);
+            fCompressedText = fCompressedPreservedText = null;
+            fCompressed = false;
         }
 
         /**
@@ -53,6 +180,7 @@ public class StyledTextUndoManager {
             fEnd = end;
             fText = null;
             fPreservedText = null;
+            fModified = true;
         }
 
         /**
@@ -121,6 +249,7 @@ public class StyledTextUndoManager {
             fUndoManager.fTextBuffer.setLength(0);
             fPreservedText = fUndoManager.fPreservedTextBuffer.toString();
             fUndoManager.fPreservedTextBuffer.setLength(0);
+            fModified = true;
         }
 
         /**
@@ -156,6 +285,7 @@ public class StyledTextUndoManager {
             if (fStart > -1) {
                 fText = fUndoManager.fTextBuffer.toString();
                 fPreservedText = fUndoManager.fPreservedTextBuffer.toString();
+                fModified = true;
             }
         }
 
@@ -175,7 +305,7 @@ public class StyledTextUndoManager {
          * Checks whether this text command is valid for undo or redo.
          */
         protected boolean isValid() {
-            return fStart > -1 && fEnd > -1 && fText != null;
+            return fStart > -1 && fEnd > -1 && (fText != null || fCompressed);
         }
 
         /**
@@ -205,6 +335,7 @@ public class StyledTextUndoManager {
          */
         protected void add(UndoableTextChange change) {
             fChanges.add(change);
+            fModified = true;
         }
 
         @Override
@@ -299,6 +430,56 @@ public class StyledTextUndoManager {
         protected boolean isValid() {
             return fStart > -1 || !fChanges.isEmpty();
         }
+
+        @Override
+        protected long getByteSize() {
+            long size = super.getByteSize();
+            for (UndoableTextChange c : fChanges) {
+                size += c.getByteSize();
+            }
+            return size;
+        }
+
+        @Override
+        protected void compress() {
+            for (UndoableTextChange c : fChanges) {
+                c.compress();
+            }
+        }
+
+        @Override
+        protected UndoableTextChange copy() {
+            UndoableCompoundTextChange c = new UndoableCompoundTextChange(fUndoManager);
+            for (UndoableTextChange child : fChanges) {
+                c.fChanges.add(child.copy());
+            }
+            c.fId = fId;
+            return c;
+        }
+
+        @Override
+        protected void write(DataOutputStream out) throws IOException {
+            out.writeByte(CHANGE_COMPOUND);
+            out.writeInt(fChanges.size());
+            for (UndoableTextChange c : fChanges) {
+                c.write(out);
+            }
+        }
+
+        @Override
+        protected void read(DataInputStream in) throws IOException {
+            int count = in.readInt();
+            for (int i = 0; i < count; i++) {
+                add(fUndoManager.readChange(in));
+            }
+        }
+
+        @Override
+        protected void decompress() {
+            for (UndoableTextChange c : fChanges) {
+                c.decompress();
+            }
+        }
     }
 
     /**
@@ -333,8 +514,12 @@ public class StyledTextUndoManager {
 
     /** The styled text widget */
     private StyledText fStyledText;
-    /** Supported undo level */
-    private int fUndoLevel;
+    /** Approximate bytes of history held before the oldest changes are dropped */
+    private long fHistoryByteBudget;
+    /** Approximate bytes currently held by the undo and redo stacks */
+    private long fHistoryBytes = 0;
+    /** Id for the next change pushed on the undo stack */
+    private long fNextChangeId = 1;
     /** The currently constructed edit command */
     private UndoableTextChange fCurrent;
     /** The last delete edit command */
@@ -348,32 +533,36 @@ public class StyledTextUndoManager {
     private boolean fFoldingIntoCompoundChange = false;
 
     /** The undo stack */
-    private LinkedList<UndoableTextChange> fUndoStack = new LinkedList<>();
+    private ArrayDeque<UndoableTextChange> fUndoStack = new ArrayDeque<>();
     /** The redo stack */
-    private LinkedList<UndoableTextChange> fRedoStack = new LinkedList<>();
+    private ArrayDeque<UndoableTextChange> fRedoStack = new ArrayDeque<>();
 
     /** Change tracking */
-    private String fLastText = "";
     private boolean fIgnoreTextChanges = false;
     
+    /** Start of the text appended by the current streaming run, or -1 */
+    private int fStreamStart = -1;
+    /** Length of the text appended by the current streaming run */
+    private int fStreamLength = 0;
+    
     /** Listener references for proper disposal */
     private KeyAndMouseListener fKeyListener;
     private MouseListener fMouseListener;
-    private ModifyListener fModifyListener;
+    private ExtendedModifyListener fModifyListener;
+    private VerifyListener fVerifyListener;
 
     /**
      * Creates a new undo manager.
      */
-    public StyledTextUndoManager(StyledText styledText, int undoLevel) {
+    public StyledTextUndoManager(StyledText styledText, long historyByteBudget) {
         fStyledText = styledText;
-        fUndoLevel = Math.max(0, undoLevel);
+        fHistoryByteBudget = Math.max(0, historyByteBudget);
         fTextBuffer = new StringBuilder();
         fPreservedTextBuffer = new StringBuilder();
 
         // Initialize
         fCurrent = new UndoableTextChange(this);
         fPreviousDelete = new UndoableTextChange(this);
-        fLastText = fStyledText.getText();
 
         addListeners();
     }
@@ -388,15 +577,26 @@ public class StyledTextUndoManager {
         fMouseListener = new MouseListener();
         fStyledText.addMouseListener(fMouseListener);
         
-        fModifyListener = new ModifyListener() {
+        fModifyListener = new ExtendedModifyListener() {
             @Override
-            public void modifyText(ModifyEvent e) {
+            public void modifyText(ExtendedModifyEvent e) {
                 if (!fIgnoreTextChanges) {
-                    handleTextChange();
+                    handleTextChange(e);
+                }
+            }
+        };
+        fStyledText.addExtendedModifyListener(fModifyListener);
+        
+        // A change that does not extend a streaming run ends it while the run's text is still intact
+        fVerifyListener = new VerifyListener() {
+            @Override
+            public void verifyText(VerifyEvent e) {
+                if (fStreamStart >= 0 && !(e.start == e.end && e.start == fStreamStart + fStreamLength)) {
+                    flushStream();
                 }
             }
         };
-        fStyledText.addModifyListener(fModifyListener);
+        fStyledText.addVerifyListener(fVerifyListener);
     }
 
     /**
@@ -413,85 +613,68 @@ public class StyledTextUndoManager {
                 fMouseListener = null;
             }
             if (fModifyListener != null) {
-                fStyledText.removeModifyListener(fModifyListener);
+                fStyledText.removeExtendedModifyListener(fModifyListener);
                 fModifyListener = null;
             }
+            if (fVerifyListener != null) {
+                fStyledText.removeVerifyListener(fVerifyListener);
+                fVerifyListener = null;
+            }
         }
     }
 
     /**
-     * Handle text change by computing what changed and processing it.
+     * Handle a text change from the event data, reading only the inserted range.
      */
-    private void handleTextChange() {
-        String currentText = fStyledText.getText();
-        if (currentText.equals(fLastText)) {
+    private void handleTextChange(ExtendedModifyEvent e) {
+        String replacedText = e.replacedText == null ? "" : e.replacedText;
+        if (e.length == 0 && replacedText.isEmpty()) {
             return;
         }
 
-        // Compute the change
-        TextChangeInfo change = computeChange(fLastText, currentText);
-        if (change != null) {
-            processChange(change.offset, change.offset + change.length, 
-                         change.insertedText, change.replacedText);
-            fCurrent.pretendCommit();
-            
-            if (!fFoldingIntoCompoundChange) {
-                if (fCurrent.isValid() && fCurrent != getLastAddedCommand()) {
-                    addToUndoStack(fCurrent);
-                }
+        // Inside a compound change, consecutive appends only extend the streaming run
+        if (fFoldingIntoCompoundChange && replacedText.isEmpty()) {
+            if (fStreamStart < 0) {
+                fStreamStart = e.start;
+                fStreamLength = 0;
+            }
+            if (e.start == fStreamStart + fStreamLength) {
+                fStreamLength += e.length;
+                clearRedoStack();
+                return;
             }
         }
+        flushStream();
 
-        fLastText = currentText;
-        fRedoStack.clear(); // Clear redo on new change
-    }
+        String insertedText = e.length > 0 ? fStyledText.getTextRange(e.start, e.length) : "";
+        processChange(e.start, e.start + replacedText.length(), insertedText, replacedText);
+        fCurrent.pretendCommit();
+
+        if (!fFoldingIntoCompoundChange) {
+            if (fCurrent.isValid() && fCurrent != getLastAddedCommand()) {
+                addToUndoStack(fCurrent);
+            }
+        }
 
-    private static class TextChangeInfo {
-        int offset;
-        int length;
-        String insertedText;
-        String replacedText;
+        clearRedoStack(); // Clear redo on new change
     }
 
     /**
-     * Compute what changed between old and new text.
+     * Records the text appended by the current streaming run as one change.
      */
-    private TextChangeInfo computeChange(String oldText, String newText) {
-        // Find common prefix
-        int prefixLength = 0;
-        int minLength = Math.min(oldText.length(), newText.length());
-        while (prefixLength < minLength && 
-               oldText.charAt(prefixLength) == newText.charAt(prefixLength)) {
-            prefixLength++;
-        }
-
-        // Find common suffix
-        int suffixLength = 0;
-        int oldPos = oldText.length() - 1;
-        int newPos = newText.length() - 1;
-        while (suffixLength < minLength - prefixLength &&
-               oldPos >= prefixLength && newPos >= prefixLength &&
-               oldText.charAt(oldPos) == newText.charAt(newPos)) {
-            suffixLength++;
-            oldPos--;
-            newPos--;
-        }
-
-        // Extract the changed parts
-        int offset = prefixLength;
-        String deleted = oldText.substring(prefixLength, oldText.length() - suffixLength);
-        String inserted = newText.substring(prefixLength, newText.length() - suffixLength);
-
-        if (deleted.isEmpty() && inserted.isEmpty()) {
-            return null;
+    private void flushStream() {
+        if (fStreamStart < 0) {
+            return;
+        }
+        int start = fStreamStart;
+        int length = fStreamLength;
+        fStreamStart = -1;
+        fStreamLength = 0;
+        
+        if (length > 0 && start + length <= fStyledText.getCharCount()) {
+            processChange(start, start, fStyledText.getTextRange(start, length), "");
+            fCurrent.pretendCommit();
         }
-
-        TextChangeInfo info = new TextChangeInfo();
-        info.offset = offset;
-        info.length = deleted.length();
-        info.insertedText = inserted;
-        info.replacedText = deleted;
-        return info;
     }
 
     public void beginCompoundChange() {
@@ -500,6 +683,8 @@ public class StyledTextUndoManager {
     }
 
     public void endCompoundChange() {
+        // Materialize the generated text while it still belongs to the compound change
+        flushStream();
         fFoldingIntoCompoundChange = false;
         commit();
     }
@@ -508,12 +693,15 @@ public class StyledTextUndoManager {
      * Closes the current editing command and opens a new one.
      */
     private void commit() {
+        flushStream();
         if (getLastAddedCommand() != fCurrent) {
             fCurrent.pretendCommit();
             if (fCurrent.isValid())
                 addToUndoStack(fCurrent);
         }
         fCurrent.commit();
+        // The last change may have grown, e.g. a compound change that received a child
+        trimUndoStack();
     }
 
     /**
@@ -701,40 +889,323 @@ public class StyledTextUndoManager {
         return new String[] { "\r\n", "\n", "\r" };
     }
 
-    public void setMaximalUndoLevel(int undoLevel) {
-        fUndoLevel = Math.max(0, undoLevel);
-        trimUndoStack();
-    }
-
     private void addToUndoStack(UndoableTextChange command) {
         // Only add compound changes when folding, or any command when not folding
         if (!fFoldingIntoCompoundChange || 
             (fFoldingIntoCompoundChange && command instanceof UndoableCompoundTextChange)) {
+            // The previous change is complete now, so it can be stored compactly
+            if (command.fId == 0) {
+                command.fId = fNextChangeId++;
+            }
+            UndoableTextChange previous = getLastAddedCommand();
+            if (previous != null && previous != fCurrent) {
+                previous.compress();
+                account(previous);
+            }
             fUndoStack.addLast(command);
             trimUndoStack();
         }
     }
 
+    /**
+     * Drops changes until the history fits the byte budget: first the redo
+     * changes furthest from the current state, which the next edit discards
+     * anyway, then the oldest undo changes. The most recent change and the
+     * next change to redo are always kept.
+     */
     private void trimUndoStack() {
-        while (fUndoStack.size() > fUndoLevel) {
-            fUndoStack.removeFirst();
+        if (!fUndoStack.isEmpty()) {
+            account(fUndoStack.getLast());
+        }
+        while (fHistoryBytes > fHistoryByteBudget && fRedoStack.size() > 1) {
+            release(fRedoStack.removeFirst());
+        }
+        while (fHistoryBytes > fHistoryByteBudget && fUndoStack.size() > 1) {
+            release(fUndoStack.removeFirst());
+        }
+    }
+
+    private void clearRedoStack() {
+        while (!fRedoStack.isEmpty()) {
+            release(fRedoStack.removeLast());
         }
     }
 
+    /**
+     * Brings the running history size up to date with the change's current size.
+     */
+    private void account(UndoableTextChange change) {
+        long size = change.getByteSize();
+        fHistoryBytes += size - change.fAccountedBytes;
+        change.fAccountedBytes = size;
+    }
+
+    private void release(UndoableTextChange change) {
+        fHistoryBytes -= change.fAccountedBytes;
+        change.fAccountedBytes = 0;
+    }
+
     private UndoableTextChange getLastAddedCommand() {
         return fUndoStack.isEmpty() ? null : fUndoStack.getLast();
     }
 
+    /**
+     * Returns the approximate number of bytes held by the undo and redo history.
+     */
+    public long getHistoryByteSize() {
+        return fHistoryBytes;
+    }
+
+    /**
+     * Returns whether a compound change (e.g. a generation) is in progress.
+     */
+    public boolean isInCompoundChange() {
+        return fFoldingIntoCompoundChange;
+    }
+
+    /**
+     * Takes what the next history log write needs: each change that is new
+     * or has changed since it was last taken (every change if {@code full}),
+     * then the ids on both stacks together with the length and hash of the
+     * document they apply to. Only the change objects are copied, so this is
+     * cheap, and the snapshot can be written on another thread.
+     */
+    public HistorySnapshot snapshotHistory(String documentText, boolean full) {
+        HistorySnapshot snapshot = new HistorySnapshot();
+        for (UndoableTextChange c : fUndoStack) {
+            snapshot.addChange(c, full);
+        }
+        for (UndoableTextChange c : fRedoStack) {
+            snapshot.addChange(c, full);
+        }
+        snapshot.length = documentText.length();
+        snapshot.hash = documentText.hashCode();
+        snapshot.undoIds = getIds(fUndoStack);
+        snapshot.redoIds = getIds(fRedoStack);
+        return snapshot;
+    }
+
+    private static long[] getIds(ArrayDeque<UndoableTextChange> stack) {
+        long[] ids = new long[stack.size()];
+        int i = 0;
+        for (UndoableTextChange c : stack) {
+            ids[i++] = c.fId;
+        }
+        return ids;
+    }
+
+    /**
+     * History taken by {@link #snapshotHistory} to be appended to a log
+     */
+    public static class HistorySnapshot {
+        private final List<UndoableTextChange> changes = new ArrayList<>();
+        private int length;
+        private int hash;
+        private long[] undoIds;
+        private long[] redoIds;
+
+        private void addChange(UndoableTextChange c, boolean full) {
+            if (full || c.fModified) {
+                changes.add(c.copy());
+                c.fModified = false;
+            }
+        }
+
+        public void write(DataOutputStream out) throws IOException {
+            for (UndoableTextChange c : changes) {
+                out.writeByte(RECORD_CHANGE);
+                out.writeLong(c.fId);
+                c.write(out);
+            }
+
+            out.writeByte(RECORD_STATE);
+            out.writeInt(length);
+            out.writeInt(hash);
+            writeIds(out, undoIds);
+            writeIds(out, redoIds);
+        }
+    }
+
+    /**
+     * Replaces the history with the one replayed from a log. The last
+     * complete state record wins; a record cut short by an interrupted write
+     * is ignored. Returns false, leaving the history empty, if the log does
+     * not belong to the given document text.
+     */
+    public boolean readHistory(DataInputStream in, String documentText) throws IOException {
+        Map<Long, UndoableTextChange> changes = new HashMap<>();
+        long[] undoIds = null;
+        long[] redoIds = null;
+        int length = -1;
+        int hash = 0;
+
+        try {
+            int type;
+            while ((type = in.read()) >= 0) {
+                if (type == RECORD_CHANGE) {
+                    long id = in.readLong();
+                    UndoableTextChange c = readChange(in);
+                    c.fId = id;
+                    changes.put(id, c);
+                } else if (type == RECORD_STATE) {
+                    int stateLength = in.readInt();
+                    int stateHash = in.readInt();
+                    long[] stateUndoIds = readIds(in);
+                    long[] stateRedoIds = readIds(in);
+                    length = stateLength;
+                    hash = stateHash;
+                    undoIds = stateUndoIds;
+                    redoIds = stateRedoIds;
+                } else {
+                    throw new IOException("Unknown undo history record " + type);
+                }
+            }
+        } catch (EOFException e) {
+            // Interrupted write; keep the last complete state
+        }
+
+        reset();
+        if (undoIds == null || length != documentText.length() || hash != documentText.hashCode()) {
+            return false;
+        }
+
+        for (long id : undoIds) {
+            restoreChange(fUndoStack, changes.get(id));
+        }
+        for (long id : redoIds) {
+            restoreChange(fRedoStack, changes.get(id));
+        }
+        trimUndoStack();
+        return true;
+    }
+
+    private UndoableTextChange readChange(DataInputStream in) throws IOException {
+        int type = in.readByte();
+        UndoableTextChange c;
+        if (type == CHANGE_SIMPLE) {
+            c = new UndoableTextChange(this);
+        } else if (type == CHANGE_COMPOUND) {
+            c = new UndoableCompoundTextChange(this);
+        } else {
+            throw new IOException("Unknown undo change type " + type);
+        }
+        c.read(in);
+        return c;
+    }
+
+    private void restoreChange(ArrayDeque<UndoableTextChange> stack, UndoableTextChange c) {
+        if (c == null) {
+            return;
+        }
+        c.fModified = false;
+        fNextChangeId = Math.max(fNextChangeId, c.fId + 1);
+        stack.addLast(c);
+        account(c);
+    }
+
+    private static void writeIds(DataOutputStream out, long[] ids) throws IOException {
+        out.writeInt(ids.length);
+        for (long id : ids) {
+            out.writeLong(id);
+        }
+    }
+
+    private static long[] readIds(DataInputStream in) throws IOException {
+        long[] ids = new long[in.readInt()];
+        for (int i = 0; i < ids.length; i++) {
+            ids[i] = in.readLong();
+        }
+        return ids;
+    }
+
+    private static void writeBytes(DataOutputStream out, byte[] bytes) throws IOException {
+        out.writeInt(bytes == null ? -1 : bytes.length);
+        if (bytes != null) {
+            out.write(bytes);
+        }
+    }
+
+    private static byte[] readBytes(DataInputStream in) throws IOException {
+        int length = in.readInt();
+        if (length < 0) {
+            return null;
+        }
+        byte[] bytes = new byte[length];
+        in.readFully(bytes);
+        return bytes;
+    }
+
+    public int getUndoStackSize() {
+        return fUndoStack.size();
+    }
+
+    public int getRedoStackSize() {
+        return fRedoStack.size();
+    }
+
+    private static long charLength(String text) {
+        return text == null ? 0 : text.length();
+    }
+
+    private static long byteLength(byte[] bytes) {
+        return bytes == null ? 0 : bytes.length;
+    }
+
+    private static byte[] deflate(String text) {
+        if (text == null) {
+            return null;
+        }
+        Deflater deflater = new Deflater(Deflater.BEST_SPEED);
+        try {
+            deflater.setInput(text.getBytes(StandardCharsets.UTF_8));
+            deflater.finish();
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            byte[] buffer = new byte[8192];
+            while (!deflater.finished()) {
+                out.write(buffer, 0, deflater.deflate(buffer));
+            }
+            return out.toByteArray();
+        } finally {
+            deflater.end();
+        }
+    }
+
+    private static String inflate(byte[] bytes) {
+        if (bytes == null) {
+            return null;
+        }
+        Inflater inflater = new Inflater();
+        try {
+            inflater.setInput(bytes);
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            byte[] buffer = new byte[8192];
+            while (!inflater.finished()) {
+                int count = inflater.inflate(buffer);
+                if (count == 0 && inflater.needsInput()) {
+                    break;
+                }
+                out.write(buffer, 0, count);
+            }
+            return new String(out.toByteArray(), StandardCharsets.UTF_8);
+        } catch (DataFormatException e) {
+            throw new IllegalStateException("Corrupt undo history entry", e);
+        } finally {
+            inflater.end();
+        }
+    }
+
     public void reset() {
         fUndoStack.clear();
         fRedoStack.clear();
+        fHistoryBytes = 0;
         fCurrent = new UndoableTextChange(this);
         fFoldingIntoCompoundChange = false;
         fInserting = false;
         fOverwriting = false;
         fTextBuffer.setLength(0);
         fPreservedTextBuffer.setLength(0);
-        fLastText = fStyledText.getText();
+        fStreamStart = -1;
+        fStreamLength = 0;
     }
 
     public boolean canRedo() {
@@ -755,10 +1226,12 @@ public class StyledTextUndoManager {
 
         fIgnoreTextChanges = true;
         try {
+            command.decompress();
             command.redo();
-            fLastText = fStyledText.getText();
         } finally {
             fIgnoreTextChanges = false;
+            command.compress();
+            account(command);
         }
     }
 
@@ -772,10 +1245,12 @@ public class StyledTextUndoManager {
 
         fIgnoreTextChanges = true;
         try {
+            command.decompress();
             command.undo();
-            fLastText = fStyledText.getText();
         } finally {
             fIgnoreTextChanges = false;
+            command.compress();
+            account(command);
         }
     }
 
@@ -793,6 +1268,5 @@ public class StyledTextUndoManager {
         fPreviousDelete = null;
         fTextBuffer = null;
         fPreservedTextBuffer = null;
-        fLastText = null;
     }
 }
\ No newline at end of file
@@ -11,6 +11,7 @@ import org.eclipse.swt.graphics.Point;
 import org.eclipse.swt.widgets.Event;
 import org.eclipse.swt.widgets.Menu;
 import org.eclipse.swt.widgets.MenuItem;
+import java.util.List;
 
 public class TextOperationsManager {
     
@@ -73,6 +74,18 @@ public class TextOperationsManager {
             }
         });
         
+        // Versions taken at generation boundaries
+        MenuItem versionsItem = new MenuItem(contextMenu, SWT.CASCADE);
+        versionsItem.setText("Versions");
+        Menu versionsMenu = new Menu(versionsItem);
+        versionsItem.setMenu(versionsMenu);
+        versionsMenu.addListener(SWT.Show, new org.eclipse.swt.widgets.Listener() {
+            @Override
+            public void handleEvent(Event event) {
+                populateVersionsMenu(versionsMenu);
+            }
+        });
+        
         // Separator
         new MenuItem(contextMenu, SWT.SEPARATOR);
         
@@ -140,6 +153,34 @@ public class TextOperationsManager {
         app.getPromptText().setMenu(contextMenu);
     }
     
+    private void populateVersionsMenu(Menu versionsMenu) {
+        for (MenuItem item : versionsMenu.getItems()) {
+            item.dispose();
+        }
+        
+        List<VersionHistory.Version> versions = app.getVersionHistory().getVersions();
+        if (versions.isEmpty()) {
+            MenuItem emptyItem = new MenuItem(versionsMenu, SWT.PUSH);
+            emptyItem.setText("No versions yet");
+            emptyItem.setEnabled(false);
+            return;
+        }
+        
+        // Newest first
+        for (int i = versions.size() - 1; i >= 0; i--) {
+            VersionHistory.Version version = versions.get(i);
+            MenuItem versionItem = new MenuItem(versionsMenu, SWT.PUSH);
+            versionItem.setText(version.getLabel() + " - " + version.getLength() + " chars");
+            versionItem.setEnabled(app.getPromptText().getEditable());
+            versionItem.addSelectionListener(new SelectionAdapter() {
+                @Override
+                public void widgetSelected(SelectionEvent e) {
+                    app.getVersionHistory().restore(version);
+                }
+            });
+        }
+    }
+    
     private void wrapWithTemplate(String type) {
         if (app.getPromptText().isDisposed()) return;
         
@@ -252,6 +293,12 @@ public class TextOperationsManager {
         app.getPromptText().setFont(newFont);
     }
     
+    private void showHistorySize() {
+        StyledTextUndoManager undoManager = app.getUndoManager();
+        app.updateStatus(String.format("Undo history: %d undo, %d redo, %.1f MB", undoManager.getUndoStackSize(),
+            undoManager.getRedoStackSize(), undoManager.getHistoryByteSize() / (1024.0 * 1024.0)));
+    }
+    
     private void executeTextOperation(String operationType) {
         if (app.getPromptText().isDisposed()) return;
         
@@ -259,11 +306,13 @@ public class TextOperationsManager {
             case "undo":
                 if (app.getUndoManager() != null && app.getUndoManager().canUndo()) {
                     app.getUndoManager().undo();
+                    showHistorySize();
                 }
                 break;
             case "redo":
                 if (app.getUndoManager() != null && app.getUndoManager().canRedo()) {
                     app.getUndoManager().redo();
+                    showHistorySize();
                 }
                 break;
             case "cut":
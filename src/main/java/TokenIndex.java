@@ -0,0 +1,324 @@
+import java.util.Arrays;
+
+/**
+ * Position index over the tokens shown in the prompt text.
+ * Tokens are kept sorted by start offset in primitive arrays, so a hover
+ * lookup is a binary search instead of a scan over every token.
+ * <p>
+ * The arrays form a gap buffer positioned at the last edit. Tokens in front
+ * of the gap store absolute offsets; tokens behind it store offsets relative
+ * to the end of the document. An edit therefore only moves the gap to the
+ * edit position and drops the tokens it overlaps; every token after it is
+ * shifted implicitly by the change in document length. Repeated edits in one
+ * place (typing) and appends while streaming cost O(log n); jumping to a far
+ * away edit costs one array copy over the tokens in between.
+ * <p>
+ * Next to each token the index keeps a running count of descents: tokens
+ * whose id is not greater than the id of the token before them. They are
+ * stored like the offsets, absolute in front of the gap and relative to the
+ * total behind it, so whether a run of tokens has ascending ids is a
+ * subtraction, and a token stored out of order only affects the runs that
+ * contain it.
+ */
+public class TokenIndex {
+
+    private static final int INITIAL_CAPACITY = 256;
+
+    private int[] starts = new int[INITIAL_CAPACITY];
+    private int[] lengths = new int[INITIAL_CAPACITY];
+    private int[] ids = new int[INITIAL_CAPACITY];
+    /** Descents up to and including each token */
+    private int[] descents = new int[INITIAL_CAPACITY];
+
+    /** Physical range [gapStart, gapEnd) holds no tokens */
+    private int gapStart = 0;
+    private int gapEnd = INITIAL_CAPACITY;
+
+    /** Length the tokens behind the gap are anchored to */
+    private int documentLength = 0;
+
+    /** Total number of descents, which the counts behind the gap are relative to */
+    private int descentCount = 0;
+
+    /** Span of the tokens dropped by the last edit, in post-edit offsets */
+    private int droppedStart = -1;
+    private int droppedEnd = -1;
+
+    /**
+     * Adds a token id from the {@link TokenStore}, replacing any token that
+     * starts at the same offset
+     */
+    public void put(int start, int length, int id) {
+        moveGap(lowerBound(start));
+
+        if (gapEnd < starts.length && startAt(gapEnd) == start) {
+            moveGap(gapStart + 1);
+            lengths[gapStart - 1] = length;
+            ids[gapStart - 1] = id;
+        } else {
+            if (gapStart == gapEnd) {
+                grow();
+            }
+            starts[gapStart] = start;
+            lengths[gapStart] = length;
+            ids[gapStart] = id;
+            descents[gapStart] = gapStart > 0 ? descents[gapStart - 1] : 0;
+            gapStart++;
+        }
+        setLastDescent(gapStart > 1 && ids[gapStart - 2] >= id);
+        setBoundaryDescent();
+    }
+
+    /**
+     * Finds the id of the token covering the given offset in O(log n), or -1.
+     * Zero-length tokens are only hit at their exact position.
+     */
+    public int find(int offset) {
+        int index = lowerBound(offset + 1) - 1;
+        // A zero-length token may sit in front of the token that covers the offset
+        for (int i = index; i >= 0 && i >= index - 1; i--) {
+            int physical = toPhysical(i);
+            if (contains(physical, offset)) {
+                return ids[physical];
+            }
+            if (lengths[physical] != 0) {
+                break;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Updates the index for a text change: tokens before the change keep
+     * their offsets, tokens after it shift, and tokens overlapping it are
+     * dropped. Returns the number of dropped tokens; their extent is then
+     * available from {@link #getDroppedStart()} and {@link #getDroppedEnd()}.
+     */
+    public int textChanged(int offset, int removedLength, int insertedLength) {
+        moveGap(lowerBound(offset));
+
+        int dropped = 0;
+        int spanStart = Integer.MAX_VALUE;
+        int spanEnd = Integer.MIN_VALUE;
+
+        // Tokens starting before the edit are dropped when they reach into it
+        int first = gapStart;
+        while (first > 0 && (lengths[first - 1] == 0 || starts[first - 1] + lengths[first - 1] > offset)) {
+            first--;
+        }
+        int keep = first;
+        for (int i = first; i < gapStart; i++) {
+            if (lengths[i] > 0 && starts[i] + lengths[i] > offset) {
+                spanStart = Math.min(spanStart, starts[i]);
+                spanEnd = Math.max(spanEnd, starts[i] + lengths[i]);
+                dropped++;
+            } else {
+                starts[keep] = starts[i];
+                lengths[keep] = lengths[i];
+                ids[keep] = ids[i];
+                // The token may follow a different one now
+                descents[keep] = keep == 0 ? 0 : descents[keep - 1] + (ids[keep - 1] >= ids[keep] ? 1 : 0);
+                keep++;
+            }
+        }
+        gapStart = keep;
+
+        // Tokens starting inside the removed range are dropped
+        int removedEnd = offset + removedLength;
+        while (gapEnd < starts.length && startAt(gapEnd) < removedEnd) {
+            spanStart = Math.min(spanStart, startAt(gapEnd));
+            spanEnd = Math.max(spanEnd, startAt(gapEnd) + lengths[gapEnd]);
+            gapEnd++;
+            dropped++;
+        }
+        setBoundaryDescent();
+
+        // Everything behind the gap moves with the end of the document
+        int delta = insertedLength - removedLength;
+        documentLength += delta;
+
+        if (dropped > 0) {
+            droppedStart = Math.min(spanStart, offset);
+            droppedEnd = Math.max(spanEnd, removedEnd) + delta;
+        } else {
+            droppedStart = droppedEnd = -1;
+        }
+        return dropped;
+    }
+
+    /**
+     * Logical index of the first token that ends after the offset; tokens
+     * from there on can be walked in order with the accessors below
+     */
+    public int indexAt(int offset) {
+        int index = lowerBound(offset + 1) - 1;
+        if (index >= 0) {
+            int physical = toPhysical(index);
+            if (startAt(physical) + lengths[physical] > offset) {
+                return index;
+            }
+        }
+        return index + 1;
+    }
+
+    /**
+     * Logical index one past the last token starting before the offset
+     */
+    public int endIndex(int offset) {
+        return lowerBound(offset);
+    }
+
+    /**
+     * Whether the tokens at logical indexes [from, to) carry consecutive ids,
+     * i.e. no token in between was dropped or stored out of order. Ascending
+     * ids whose first and last differ by the count minus one are consecutive.
+     */
+    public boolean hasConsecutiveIds(int from, int to) {
+        if (to <= from) {
+            return true;
+        }
+        return descentsAt(toPhysical(to - 1)) == descentsAt(toPhysical(from))
+            && getId(to - 1) - getId(from) == to - 1 - from;
+    }
+
+    public int getStart(int index) {
+        return startAt(toPhysical(index));
+    }
+
+    public int getLength(int index) {
+        return lengths[toPhysical(index)];
+    }
+
+    public int getId(int index) {
+        return ids[toPhysical(index)];
+    }
+
+    public int getDroppedStart() {
+        return droppedStart;
+    }
+
+    public int getDroppedEnd() {
+        return droppedEnd;
+    }
+
+    public int size() {
+        return gapStart + (starts.length - gapEnd);
+    }
+
+    public void clear() {
+        gapStart = 0;
+        gapEnd = starts.length;
+        descentCount = 0;
+    }
+
+    /**
+     * Number of tokens starting before the offset, i.e. the logical index of
+     * the first token starting at or after it
+     */
+    private int lowerBound(int offset) {
+        int low = 0;
+        int high = size();
+        while (low < high) {
+            int mid = (low + high) >>> 1;
+            if (startAt(toPhysical(mid)) < offset) {
+                low = mid + 1;
+            } else {
+                high = mid;
+            }
+        }
+        return low;
+    }
+
+    /**
+     * Moves the gap so that exactly {@code index} tokens precede it
+     */
+    private void moveGap(int index) {
+        if (index < gapStart) {
+            int count = gapStart - index;
+            int target = gapEnd - count;
+            for (int i = count - 1; i >= 0; i--) {
+                starts[target + i] = starts[index + i] - documentLength;
+                lengths[target + i] = lengths[index + i];
+                ids[target + i] = ids[index + i];
+                descents[target + i] = descents[index + i] - descentCount;
+            }
+            gapStart = index;
+            gapEnd = target;
+        } else if (index > gapStart) {
+            int count = index - gapStart;
+            for (int i = 0; i < count; i++) {
+                starts[gapStart + i] = starts[gapEnd + i] + documentLength;
+                lengths[gapStart + i] = lengths[gapEnd + i];
+                ids[gapStart + i] = ids[gapEnd + i];
+                descents[gapStart + i] = descents[gapEnd + i] + descentCount;
+            }
+            gapStart = index;
+            gapEnd += count;
+        }
+    }
+
+    private void grow() {
+        int capacity = starts.length * 2;
+        int tail = starts.length - gapEnd;
+        int newGapEnd = capacity - tail;
+
+        int[] newStarts = Arrays.copyOf(starts, capacity);
+        int[] newLengths = Arrays.copyOf(lengths, capacity);
+        int[] newIds = Arrays.copyOf(ids, capacity);
+        int[] newDescents = Arrays.copyOf(descents, capacity);
+        System.arraycopy(starts, gapEnd, newStarts, newGapEnd, tail);
+        System.arraycopy(lengths, gapEnd, newLengths, newGapEnd, tail);
+        System.arraycopy(ids, gapEnd, newIds, newGapEnd, tail);
+        System.arraycopy(descents, gapEnd, newDescents, newGapEnd, tail);
+
+        starts = newStarts;
+        lengths = newLengths;
+        ids = newIds;
+        descents = newDescents;
+        gapEnd = newGapEnd;
+    }
+
+    /**
+     * Sets whether the last token in front of the gap is a descent; every
+     * count behind the gap moves with it
+     */
+    private void setLastDescent(boolean descent) {
+        int before = gapStart > 1 ? descents[gapStart - 2] : 0;
+        int delta = before + (descent ? 1 : 0) - descents[gapStart - 1];
+        descents[gapStart - 1] += delta;
+        descentCount += delta;
+    }
+
+    /**
+     * Recomputes whether the first token behind the gap is a descent from
+     * the last one in front of it, after either side changed
+     */
+    private void setBoundaryDescent() {
+        if (gapEnd == starts.length) {
+            return;
+        }
+        int before = gapStart > 0 ? descents[gapStart - 1] : 0;
+        boolean descent = gapStart > 0 && ids[gapStart - 1] >= ids[gapEnd];
+        descentCount += before + (descent ? 1 : 0) - (descents[gapEnd] + descentCount);
+    }
+
+    private int descentsAt(int physical) {
+        return physical < gapStart ? descents[physical] : descents[physical] + descentCount;
+    }
+
+    private int toPhysical(int index) {
+        return index < gapStart ? index : index + (gapEnd - gapStart);
+    }
+
+    private int startAt(int physical) {
+        return physical < gapStart ? starts[physical] : starts[physical] + documentLength;
+    }
+
+    private boolean contains(int physical, int offset) {
+        int start = startAt(physical);
+        if (lengths[physical] == 0) {
+            return offset == start;
+        }
+        return offset >= start && offset < start + lengths[physical];
+    }
+}
@@ -1,4 +1,8 @@
 import org.eclipse.swt.SWT;
+import org.eclipse.swt.custom.ExtendedModifyEvent;
+import org.eclipse.swt.custom.ExtendedModifyListener;
+import org.eclipse.swt.custom.LineStyleEvent;
+import org.eclipse.swt.custom.LineStyleListener;
 import org.eclipse.swt.custom.StyleRange;
 import org.eclipse.swt.events.MouseEvent;
 import org.eclipse.swt.events.MouseMoveListener;
@@ -12,17 +16,35 @@ import org.eclipse.swt.layout.GridLayout;
 import org.eclipse.swt.widgets.Label;
 import org.eclipse.swt.widgets.Shell;
 import java.util.ArrayList;
-import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
 
 public class TokenManager {
     
     private SimpleMikuPad app;
-    private Map<Integer, TokenInfo> tokenMap = new HashMap<>();
-    private Shell currentTooltip;
-    private TokenInfo currentHoverToken;
+    private TokenStore tokenStore = new TokenStore();
+    private TokenIndex tokenIndex = new TokenIndex();
+    private TokenSidecar sidecar;
+    /** Incremented per load so the result of an outdated load is dropped */
+    private int loadGeneration = 0;
+    /** Edits made while token data is loading, as start / removed / inserted lengths; null when not loading */
+    private List<int[]> editsDuringLoad;
+    private Shell tooltipShell;
+    private Label tooltipLabel;
+    private int tooltipX;
+    private int tooltipY;
+    private boolean tooltipUpdateScheduled = false;
+    private final Runnable tooltipUpdate = this::updateTooltip;
+    private final Map<Integer, String> tooltipCache = new LinkedHashMap<Integer, String>(16, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<Integer, String> eldest) {
+            return size() > Constants.TOOLTIP_CACHE_SIZE;
+        }
+    };
+    private int currentHoverToken = -1;
     private boolean coloringEnabled = true;
+    private int renderMode = Constants.RENDER_MODE_PROBABILITY;
     private List<Color> colors = new ArrayList<>();
     private Color promptColorDark;
     private Color promptColorLight;
@@ -46,6 +68,30 @@ public class TokenManager {
             return; // UI not ready yet
         }
         
+        // Keep token metadata anchored to the text as it is edited
+        app.getPromptText().addExtendedModifyListener(new ExtendedModifyListener() {
+            @Override
+            public void modifyText(ExtendedModifyEvent e) {
+                handleTextChanged(e);
+            }
+        });
+        
+        // Token colors are computed from the index for the lines being painted
+        app.getPromptText().addLineStyleListener(new LineStyleListener() {
+            @Override
+            public void lineGetStyle(LineStyleEvent e) {
+                handleLineStyle(e);
+            }
+        });
+        
+        // Show statistics for the tokens under the selection
+        app.getPromptText().addSelectionListener(new SelectionAdapter() {
+            @Override
+            public void widgetSelected(SelectionEvent e) {
+                handleSelectionChanged(e.x, e.y);
+            }
+        });
+        
         // Mouse hover listener for tooltips
         app.getPromptText().addMouseMoveListener(new MouseMoveListener() {
             @Override
@@ -60,10 +106,24 @@ public class TokenManager {
             public void widgetSelected(SelectionEvent e) {
                 coloringEnabled = app.getColorToggleButton().getSelection();
                 if (!coloringEnabled) {
-                    clearTokenColoring();
+                    currentHoverToken = -1;
+                    hideTooltip();
                 }
+                // Styles are derived while painting, so a redraw is all it takes
+                app.getPromptText().redraw();
             }
         });
+        
+        // Render mode only changes how retained token data is painted
+        if (app.getRenderModeCombo() != null) {
+            app.getRenderModeCombo().addSelectionListener(new SelectionAdapter() {
+                @Override
+                public void widgetSelected(SelectionEvent e) {
+                    renderMode = app.getRenderModeCombo().getSelectionIndex();
+                    app.getPromptText().redraw();
+                }
+            });
+        }
     }
     
     private void createColors() {
@@ -95,26 +155,18 @@ public class TokenManager {
         }
     }
     
-    public void showPromptToken(int offset, int length, int tokenIndex) {
-        if (app.getPromptText().isDisposed() || !coloringEnabled) return;
-        
-        // Only apply visual styling to tokens that have actual content
-        if (length > 0) {
-            StyleRange style = new StyleRange();
-            style.start = offset;
-            style.length = length;
-            
-            // Alternate between the two blue shades
-            style.background = (tokenIndex % 2 == 0) ? promptColorDark : promptColorLight;
-            
-            app.getPromptText().setStyleRange(style);
-        }
+    public boolean isColoringEnabled() {
+        return coloringEnabled;
     }
     
-    public void storeTokenInfo(int offset, String tokenText) {
+    public void storeTokenInfo(int offset, String tokenText, int promptIndex) {
         // Store prompt token info (no probability/alternatives for prompt tokens)
-        TokenInfo tokenInfo = new TokenInfo(tokenText, -1.0, null);
-        tokenMap.put(offset, tokenInfo);
+        int id = tokenStore.addPromptToken(tokenText, promptIndex);
+        tokenIndex.put(offset, tokenText.length(), id);
+        if (sidecar != null) {
+            sidecar.append(tokenStore, id, offset);
+        }
+        redrawTokenRange(offset, tokenText.length());
     }
 
     public void appendSingleToken(String token, double probability, List<TokenAlternative> alternatives) {
@@ -123,29 +175,238 @@ public class TokenManager {
         int startOffset = app.getPromptText().getCharCount();
         app.getPromptText().append(token);
         
-        TokenInfo tokenInfo = new TokenInfo(token, probability, alternatives);
-        tokenMap.put(startOffset, tokenInfo);
-        
-        if (coloringEnabled) {
-            StyleRange style = new StyleRange();
-            style.start = startOffset;
-            style.length = token.length();
-            style.background = getColorForProbability(probability);
-            
-            app.getPromptText().setStyleRange(style);
+        int id = tokenStore.addGeneratedToken(token, probability, alternatives);
+        tokenIndex.put(startOffset, token.length(), id);
+        if (sidecar != null) {
+            sidecar.append(tokenStore, id, startOffset);
         }
+        redrawTokenRange(startOffset, token.length());
     }
     
     public void clearTokenColoring() {
         app.getDisplay().asyncExec(() -> {
             if (!app.getPromptText().isDisposed()) {
-                app.getPromptText().setStyleRanges(new StyleRange[0]);
-                tokenMap.clear();
+                // Token data still loading would bring the cleared tokens back
+                loadGeneration++;
+                editsDuringLoad = null;
+                tokenIndex.clear();
+                tokenStore.clear();
+                tooltipCache.clear();
+                currentHoverToken = -1;
                 hideTooltip();
+                if (sidecar != null) {
+                    sidecar.clear();
+                }
+                app.getPromptText().redraw();
             }
         });
     }
     
+    /**
+     * Replaces the token data with the data saved for a session. Must be
+     * called after the session text has been put into the prompt. The data
+     * is read in the background and shows up once it is loaded.
+     */
+    public void loadTokenData(String sessionId) {
+        if (sidecar != null) {
+            sidecar.close();
+        }
+        tokenIndex.clear();
+        tokenStore.clear();
+        tooltipCache.clear();
+        currentHoverToken = -1;
+        hideTooltip();
+        
+        sidecar = new TokenSidecar(sessionId);
+        if (!app.getPromptText().isDisposed()) {
+            int generation = ++loadGeneration;
+            editsDuringLoad = new ArrayList<>();
+            sidecar.load(app.getPromptText().getText(), (store, index) -> {
+                if (app.getDisplay().isDisposed()) return;
+                app.getDisplay().asyncExec(() -> adoptLoadedTokens(generation, store, index));
+            });
+            app.getPromptText().redraw();
+        }
+    }
+    
+    /**
+     * Swaps in loaded token data, after bringing it up to date with the
+     * edits and tokens that came in while it was loading
+     */
+    private void adoptLoadedTokens(int generation, TokenStore store, TokenIndex index) {
+        if (generation != loadGeneration || app.getPromptText().isDisposed()) return;
+        
+        for (int[] edit : editsDuringLoad) {
+            index.textChanged(edit[0], edit[1], edit[2]);
+        }
+        if (!editsDuringLoad.isEmpty()) {
+            sidecar.markDirty();
+        }
+        editsDuringLoad = null;
+        for (int i = 0; i < tokenIndex.size(); i++) {
+            index.put(tokenIndex.getStart(i), tokenIndex.getLength(i), copyToken(tokenStore, tokenIndex.getId(i), store));
+        }
+        
+        tokenStore = store;
+        tokenIndex = index;
+        tooltipCache.clear();
+        currentHoverToken = -1;
+        app.getPromptText().redraw();
+    }
+    
+    private static int copyToken(TokenStore from, int id, TokenStore to) {
+        if (from.isPromptToken(id)) {
+            return to.addPromptToken(from.getText(id), from.isPromptStripe(id) ? 0 : 1);
+        }
+        List<TokenAlternative> alternatives = new ArrayList<>();
+        for (int i = 0; i < from.getAlternativeCount(id); i++) {
+            alternatives.add(new TokenAlternative(from.getAlternativeText(id, i), from.getAlternativeProbability(id, i)));
+        }
+        return to.addGeneratedToken(from.getText(id), from.getProbability(id), alternatives);
+    }
+    
+    /**
+     * Writes pending token data of the current session to disk
+     */
+    public void saveTokenData() {
+        if (sidecar != null) {
+            sidecar.save(tokenStore, tokenIndex);
+        }
+    }
+    
+    private void handleTextChanged(ExtendedModifyEvent e) {
+        if (editsDuringLoad != null) {
+            editsDuringLoad.add(new int[] {e.start, e.replacedText.length(), e.length});
+        }
+        int dropped = tokenIndex.textChanged(e.start, e.replacedText.length(), e.length);
+        // Appending after the last token leaves the saved offsets valid; anything else moves or drops tokens.
+        // Loading a session replaces the text before the sidecar is swapped, which must not spoil the old file.
+        if (sidecar != null && !app.isLoadingSession() && (dropped > 0 || e.start < getTokenEnd())) {
+            sidecar.markDirty();
+        }
+        if (dropped > 0 && !app.getPromptText().isDisposed()) {
+            // Tokens touched by the edit no longer match their text, so repaint them uncolored
+            int start = tokenIndex.getDroppedStart();
+            redrawTokenRange(start, tokenIndex.getDroppedEnd() - start);
+            currentHoverToken = -1;
+            hideTooltip();
+        }
+    }
+    
+    private int getTokenEnd() {
+        int last = tokenIndex.size() - 1;
+        return last < 0 ? 0 : tokenIndex.getStart(last) + tokenIndex.getLength(last);
+    }
+    
+    private void handleLineStyle(LineStyleEvent e) {
+        if (!coloringEnabled || tokenIndex.size() == 0) return;
+        
+        int lineStart = e.lineOffset;
+        int lineEnd = lineStart + e.lineText.length();
+        List<StyleRange> styles = new ArrayList<>();
+        
+        for (int i = tokenIndex.indexAt(lineStart); i < tokenIndex.size(); i++) {
+            int start = tokenIndex.getStart(i);
+            if (start >= lineEnd) break;
+            
+            Color background = getTokenBackground(tokenIndex.getId(i), i);
+            int from = Math.max(start, lineStart);
+            int to = Math.min(start + tokenIndex.getLength(i), lineEnd);
+            if (background != null && to > from) {
+                styles.add(new StyleRange(from, to - from, null, background));
+            }
+        }
+        
+        e.styles = styles.toArray(new StyleRange[0]);
+    }
+    
+    /**
+     * Background for a token in the current render mode, or null if it stays
+     * uncolored. The position is the token's index in the document.
+     */
+    private Color getTokenBackground(int tokenId, int position) {
+        if (renderMode == Constants.RENDER_MODE_BOUNDARIES) {
+            return (position % 2 == 0) ? promptColorDark : promptColorLight;
+        }
+        if (tokenStore.isPromptToken(tokenId)) {
+            // Alternate between the two blue shades
+            return tokenStore.isPromptStripe(tokenId) ? promptColorDark : promptColorLight;
+        }
+        // Tokens streamed without probabilities (n_probs = 0) stay uncolored
+        if (!tokenStore.isScored(tokenId)) {
+            return null;
+        }
+        
+        switch (renderMode) {
+            case Constants.RENDER_MODE_ENTROPY: {
+                // Entropy relative to the most it can be for this many alternatives; uncertain is red
+                double entropy = tokenStore.getEntropy(tokenId);
+                int count = tokenStore.getAlternativeCount(tokenId);
+                if (Double.isNaN(entropy) || count < 2) {
+                    return null;
+                }
+                return getColorForProbability(1.0 - entropy / Math.log(count));
+            }
+            case Constants.RENDER_MODE_RANK: {
+                // Top choice is green, lower ranks fade to red, unlisted tokens are red
+                int count = tokenStore.getAlternativeCount(tokenId);
+                if (count == 0) {
+                    return null;
+                }
+                int rank = tokenStore.getRank(tokenId);
+                return getColorForProbability(rank == 0 ? 0.0 : 1.0 - (double) (rank - 1) / count);
+            }
+            default:
+                return getColorForProbability(tokenStore.getProbability(tokenId));
+        }
+    }
+    
+    private void redrawTokenRange(int offset, int length) {
+        if (app.getPromptText().isDisposed() || !coloringEnabled) return;
+        
+        int end = Math.min(offset + length, app.getPromptText().getCharCount());
+        if (offset >= 0 && end > offset) {
+            app.getPromptText().redrawRange(offset, end - offset, false);
+        }
+    }
+    
+    /**
+     * Probability statistics for the generated tokens overlapping [start, end)
+     */
+    public TokenStore.RangeStatistics getStatistics(int start, int end) {
+        int from = tokenIndex.indexAt(start);
+        int to = tokenIndex.endIndex(end);
+        if (tokenIndex.hasConsecutiveIds(from, to)) {
+            return to <= from ? new TokenStore.RangeStatistics()
+                : tokenStore.getStatistics(tokenIndex.getId(from), tokenIndex.getId(to - 1) + 1);
+        }
+        // Edits or replaced tokens broke the id run, so fall back to summing per token
+        TokenStore.RangeStatistics stats = new TokenStore.RangeStatistics();
+        for (int i = from; i < to; i++) {
+            tokenStore.accumulate(stats, tokenIndex.getId(i));
+        }
+        return stats;
+    }
+    
+    private void handleSelectionChanged(int start, int end) {
+        if (end <= start || tokenIndex.size() == 0) return;
+        
+        TokenStore.RangeStatistics stats = getStatistics(start, end);
+        if (stats.getTokenCount() == 0) return;
+        
+        StringBuilder message = new StringBuilder();
+        message.append(String.format("Selection: %d tokens | mean %.1f%% | perplexity %.2f | min %.1f%% \"%s\"",
+            stats.getTokenCount(),
+            stats.getMeanProbability() * Constants.PERCENTAGE_MULTIPLIER,
+            stats.getPerplexity(),
+            stats.getMinimumProbability() * Constants.PERCENTAGE_MULTIPLIER,
+            escapeForTooltip(stats.getMinimumText())));
+        if (!Double.isNaN(stats.getMeanEntropy())) {
+            message.append(String.format(" | entropy %.2f nats", stats.getMeanEntropy()));
+        }
+        app.updateStatus(message.toString());
+    }
+    
     private Color getColorForProbability(double probability) {
         probability = Math.max(0, Math.min(1, probability));
         int index = (int)(probability * Constants.COLOR_PROBABILITY_SCALE);
@@ -155,93 +416,106 @@ public class TokenManager {
     private void handleMouseHover(MouseEvent e) {
         if (!coloringEnabled) return;
         
+        int tokenId;
         try {
             int offset = app.getPromptText().getOffsetAtLocation(new Point(e.x, e.y));
-            TokenInfo tokenInfo = findTokenAtOffset(offset);
-            
-            if (tokenInfo != null) {
-                if (currentHoverToken != tokenInfo) {
-                    currentHoverToken = tokenInfo;
-                    showTooltip(e.x, e.y, tokenInfo);
-                }
-            } else {
-                currentHoverToken = null;
-                hideTooltip();
-            }
+            tokenId = findTokenAtOffset(offset);
         } catch (IllegalArgumentException ex) {
-            currentHoverToken = null;
+            tokenId = -1;
+        }
+        
+        if (tokenId < 0) {
+            currentHoverToken = -1;
             hideTooltip();
+            return;
         }
-    }
-    
-    private TokenInfo findTokenAtOffset(int offset) {
-        for (Map.Entry<Integer, TokenInfo> entry : tokenMap.entrySet()) {
-            int tokenStart = entry.getKey();
-            TokenInfo tokenInfo = entry.getValue();
-            
-            if (tokenInfo.text.length() == 0) {
-                // Zero-length tokens are hoverable at their exact position
-                if (offset == tokenStart) {
-                    return tokenInfo;
-                }
-            } else {
-                // Normal tokens use range checking
-                int tokenEnd = tokenStart + tokenInfo.text.length();
-                if (offset >= tokenStart && offset < tokenEnd) {
-                    return tokenInfo;
-                }
+        
+        if (currentHoverToken != tokenId) {
+            currentHoverToken = tokenId;
+            tooltipX = e.x;
+            tooltipY = e.y;
+            // Coalesce mouse moves so the tooltip is laid out at most once per frame
+            if (!tooltipUpdateScheduled) {
+                tooltipUpdateScheduled = true;
+                app.getDisplay().timerExec(Constants.TOOLTIP_UPDATE_DELAY_MS, tooltipUpdate);
             }
         }
-        return null;
     }
     
-    private void showTooltip(int x, int y, TokenInfo tokenInfo) {
-        hideTooltip();
+    private int findTokenAtOffset(int offset) {
+        return tokenIndex.find(offset);
+    }
+    
+    private void updateTooltip() {
+        tooltipUpdateScheduled = false;
+        if (currentHoverToken < 0 || app.getPromptText().isDisposed()) return;
+        
+        if (tooltipShell == null || tooltipShell.isDisposed()) {
+            tooltipShell = new Shell(app.getShell(), SWT.ON_TOP | SWT.TOOL);
+            tooltipShell.setLayout(new GridLayout(1, false));
+            tooltipShell.setBackground(app.getDisplay().getSystemColor(SWT.COLOR_INFO_BACKGROUND));
+            
+            tooltipLabel = new Label(tooltipShell, SWT.NONE);
+            tooltipLabel.setBackground(app.getDisplay().getSystemColor(SWT.COLOR_INFO_BACKGROUND));
+            tooltipLabel.setForeground(app.getDisplay().getSystemColor(SWT.COLOR_INFO_FOREGROUND));
+        }
         
-        currentTooltip = new Shell(app.getShell(), SWT.ON_TOP | SWT.TOOL);
-        currentTooltip.setLayout(new GridLayout(1, false));
-        currentTooltip.setBackground(app.getDisplay().getSystemColor(SWT.COLOR_INFO_BACKGROUND));
+        tooltipLabel.setText(getTooltipText(currentHoverToken));
+        tooltipShell.pack();
         
-        Label altLabel = new Label(currentTooltip, SWT.NONE);
+        Point displayPoint = app.getPromptText().toDisplay(tooltipX, tooltipY);
+        tooltipShell.setLocation(displayPoint.x + Constants.TOOLTIP_OFFSET_X, displayPoint.y + Constants.TOOLTIP_OFFSET_Y);
+        tooltipShell.setVisible(true);
+    }
+    
+    /**
+     * Tooltip text for a token, formatted on first use and then cached
+     */
+    private String getTooltipText(int tokenId) {
+        String text = tooltipCache.get(tokenId);
+        if (text == null) {
+            text = formatTooltip(tokenId);
+            tooltipCache.put(tokenId, text);
+        }
+        return text;
+    }
+    
+    private String formatTooltip(int tokenId) {
         StringBuilder message = new StringBuilder();
         
-        // Check if this is a prompt token (probability = -1.0 indicates prompt token)
-        if (tokenInfo.probability == -1.0) {
+        if (tokenStore.isPromptToken(tokenId)) {
             // Show just the token text in quotes for prompt tokens
-            message.append("\"").append(escapeForTooltip(tokenInfo.text)).append("\"");
+            message.append("\"").append(escapeForTooltip(tokenStore.getText(tokenId))).append("\"");
+        } else if (tokenStore.getAlternativeCount(tokenId) == 0) {
+            // No alternatives were requested or kept for this token
+            double probability = tokenStore.getProbability(tokenId);
+            if (!Double.isNaN(probability)) {
+                double percentage = probability * Constants.PERCENTAGE_MULTIPLIER;
+                message.append(String.format("%.1f%% - ", percentage));
+            }
+            message.append("\"").append(escapeForTooltip(tokenStore.getText(tokenId))).append("\"");
         } else {
             // Show alternatives for generated tokens
-            if (tokenInfo.alternatives != null && !tokenInfo.alternatives.isEmpty()) {
-                boolean first = true;
-                for (TokenAlternative alt : tokenInfo.alternatives) {
-                    double percentage = alt.probability * Constants.PERCENTAGE_MULTIPLIER;
-                    if (Math.round(percentage * 10.0) / 10.0 > 0.0) {
-                        if (!first) {
-                            message.append("\n");
-                        }
-                        message.append(String.format("%.1f%% - \"%s\"", percentage, escapeForTooltip(alt.token)));
-                        first = false;
+            boolean first = true;
+            int count = tokenStore.getAlternativeCount(tokenId);
+            for (int i = 0; i < count; i++) {
+                double percentage = tokenStore.getAlternativeProbability(tokenId, i) * Constants.PERCENTAGE_MULTIPLIER;
+                if (Math.round(percentage * 10.0) / 10.0 > 0.0) {
+                    if (!first) {
+                        message.append("\n");
                     }
+                    message.append(String.format("%.1f%% - \"%s\"", percentage, escapeForTooltip(tokenStore.getAlternativeText(tokenId, i))));
+                    first = false;
                 }
             }
         }
         
-        altLabel.setText(message.toString());
-        altLabel.setBackground(app.getDisplay().getSystemColor(SWT.COLOR_INFO_BACKGROUND));
-        altLabel.setForeground(app.getDisplay().getSystemColor(SWT.COLOR_INFO_FOREGROUND));
-        
-        currentTooltip.pack();
-        
-        Point displayPoint = app.getPromptText().toDisplay(x, y);
-        currentTooltip.setLocation(displayPoint.x + Constants.TOOLTIP_OFFSET_X, displayPoint.y + Constants.TOOLTIP_OFFSET_Y);
-        currentTooltip.setVisible(true);
+        return message.toString();
     }
     
     private void hideTooltip() {
-        if (currentTooltip != null && !currentTooltip.isDisposed()) {
-            currentTooltip.setVisible(false);
-            currentTooltip.dispose();
-            currentTooltip = null;
+        if (tooltipShell != null && !tooltipShell.isDisposed() && tooltipShell.isVisible()) {
+            tooltipShell.setVisible(false);
         }
     }
     
@@ -254,6 +528,16 @@ public class TokenManager {
     }
     
     public void dispose() {
+        if (sidecar != null) {
+            sidecar.save(tokenStore, tokenIndex);
+            sidecar.close();
+            if (!TokenSidecar.awaitWrites(Constants.TOKENS_WRITE_TIMEOUT_MS)) {
+                System.err.println("Timed out writing token data");
+            }
+        }
+        if (tooltipShell != null && !tooltipShell.isDisposed()) {
+            tooltipShell.dispose();
+        }
         for (Color color : colors) {
             if (!color.isDisposed()) {
                 color.dispose();
@@ -268,18 +552,10 @@ public class TokenManager {
     }
     
     // Helper classes
-    public static class TokenInfo {
-        final String text;
-        final double probability;
-        final List<TokenAlternative> alternatives;
-        
-        TokenInfo(String text, double probability, List<TokenAlternative> alternatives) {
-            this.text = text;
-            this.probability = probability;
-            this.alternatives = alternatives;
-        }
-    }
-    
+    /**
+     * A candidate token as parsed from a streaming response. Only used to hand
+     * alternatives over to the {@link TokenStore}, which keeps them in columns.
+     */
     public static class TokenAlternative {
         final String token;
         final double probability;
@@ -0,0 +1,456 @@
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.function.BiConsumer;
+
+/**
+ * Binary file holding the token metadata of one session, so coloring and
+ * alternatives survive restarts and session switches.
+ * <p>
+ * The file is a header followed by records. A string record defines the next
+ * dictionary entry, so every token string is written once. A token record
+ * holds the start offset as a varint delta to the previous token, the length,
+ * the text id, flags and a 16-bit quantized probability, followed by the
+ * alternatives as text id / quantized probability pairs.
+ * <p>
+ * Records are appended while tokens arrive. Edits that move or drop tokens
+ * mark the file dirty and it is rewritten from memory on the next save.
+ * <p>
+ * All file access happens on one background thread shared by all sessions,
+ * so the writes of a closed session finish before its file is loaded again.
+ * Loading decodes into a new store and index that the caller swaps in,
+ * appends are queued as small copies of the token, and a rewrite works from
+ * a snapshot of the store and the token positions.
+ */
+public class TokenSidecar {
+
+    private static final int MAGIC = 0x4D4B544B; // "MKTK"
+    private static final int VERSION = 1;
+
+    private static final int RECORD_STRING = 1;
+    private static final int RECORD_TOKEN = 2;
+
+    private static final int FLAG_PROMPT = 1;
+    private static final int FLAG_STRIPE = 2;
+
+    /** Quantized probabilities use 0..QUANTIZED_MAX; QUANTIZED_NAN marks a missing value */
+    private static final int QUANTIZED_MAX = 0xFFFE;
+    private static final int QUANTIZED_NAN = 0xFFFF;
+
+    private static final ExecutorService EXECUTOR = Executors.newSingleThreadExecutor(r -> {
+        Thread thread = new Thread(r, "token-sidecar");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    private final File file;
+
+    // Only used on the executor thread
+    private DataOutputStream out;
+    private final Map<String, Integer> stringIds = new HashMap<>();
+    private int lastStart = 0;
+
+    /** Whether the file no longer matches the tokens in memory */
+    private volatile boolean dirty = false;
+    /** Set on close so a load still running gives up */
+    private volatile boolean closing = false;
+
+    public TokenSidecar(String sessionId) {
+        this.file = getFile(sessionId);
+    }
+
+    /**
+     * Location of the token file for a session
+     */
+    public static File getFile(String sessionId) {
+        File tokensDir = new File(new File(System.getProperty("user.home"), Constants.MIKUPAD_DIR_NAME),
+            Constants.TOKENS_DIR_NAME);
+        return new File(tokensDir, sessionId + Constants.TOKENS_FILE_EXTENSION);
+    }
+
+    /**
+     * Queues deleting the token file of a session behind the writes already queued
+     */
+    public static void delete(String sessionId) {
+        File file = getFile(sessionId);
+        EXECUTOR.execute(file::delete);
+    }
+
+    /**
+     * Queues copying the token file of a session behind the writes already queued
+     */
+    public static void copy(String fromSessionId, String toSessionId) {
+        File source = getFile(fromSessionId);
+        File target = getFile(toSessionId);
+        EXECUTOR.execute(() -> {
+            if (source.exists()) {
+                try {
+                    Files.copy(source.toPath(), target.toPath(), StandardCopyOption.REPLACE_EXISTING);
+                } catch (IOException e) {
+                    System.err.println("Failed to copy " + source.getName() + ": " + e.getMessage());
+                }
+            }
+        });
+    }
+
+    /**
+     * Reads the file into a new store and index in the background and passes
+     * them to the callback, on the background thread. Tokens whose text no
+     * longer matches the document are skipped, and the file is then
+     * rewritten on the next save.
+     */
+    public void load(String documentText, BiConsumer<TokenStore, TokenIndex> callback) {
+        EXECUTOR.execute(() -> {
+            TokenStore store = new TokenStore();
+            TokenIndex index = new TokenIndex();
+            read(store, index, documentText);
+            if (!closing) {
+                callback.accept(store, index);
+            }
+        });
+    }
+
+    private void read(TokenStore store, TokenIndex index, String documentText) {
+        if (!file.exists() || file.length() == 0) {
+            return;
+        }
+
+        try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+            ByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+            if (buffer.getInt() != MAGIC || buffer.get() != VERSION) {
+                System.err.println("Ignoring unrecognized token file: " + file);
+                dirty = true;
+                return;
+            }
+
+            List<String> strings = new ArrayList<>();
+            List<TokenManager.TokenAlternative> alternatives = new ArrayList<>();
+            while (buffer.hasRemaining() && !closing) {
+                int mark = buffer.position();
+                try {
+                    int type = buffer.get();
+                    if (type == RECORD_STRING) {
+                        byte[] bytes = new byte[readVarInt(buffer)];
+                        buffer.get(bytes);
+                        String text = new String(bytes, StandardCharsets.UTF_8);
+                        stringIds.put(text, strings.size());
+                        strings.add(text);
+                    } else if (type == RECORD_TOKEN) {
+                        int start = lastStart + zigZagDecode(readVarInt(buffer));
+                        String text = strings.get(readVarInt(buffer));
+                        int flags = buffer.get();
+                        double probability = dequantize(buffer.getShort() & 0xFFFF);
+                        int alternativeCount = buffer.get() & 0xFF;
+                        alternatives.clear();
+                        for (int i = 0; i < alternativeCount; i++) {
+                            String alternativeText = strings.get(readVarInt(buffer));
+                            alternatives.add(new TokenManager.TokenAlternative(alternativeText,
+                                dequantize(buffer.getShort() & 0xFFFF)));
+                        }
+                        lastStart = start;
+
+                        if (start + text.length() > documentText.length()
+                                || !documentText.regionMatches(start, text, 0, text.length())) {
+                            dirty = true;
+                            continue;
+                        }
+                        int id = (flags & FLAG_PROMPT) != 0
+                            ? store.addPromptToken(text, (flags & FLAG_STRIPE) != 0 ? 0 : 1)
+                            : store.addGeneratedToken(text, probability, alternatives);
+                        index.put(start, text.length(), id);
+                    } else {
+                        throw new IOException("Unknown record type " + type);
+                    }
+                } catch (BufferUnderflowException | IndexOutOfBoundsException e) {
+                    // A record cut short by an interrupted write; keep what was complete
+                    System.err.println("Token file truncated at " + mark + ": " + file);
+                    dirty = true;
+                    break;
+                }
+            }
+        } catch (IOException e) {
+            System.err.println("Failed to load token data: " + e.getMessage());
+            dirty = true;
+        }
+    }
+
+    /**
+     * Queues a token that was just added to the store to be appended
+     */
+    public void append(TokenStore store, int id, int start) {
+        if (dirty) {
+            return; // Everything is rewritten on the next save anyway
+        }
+        Token token = new Token(store, id, start);
+        EXECUTOR.execute(() -> {
+            if (dirty) {
+                return;
+            }
+            try {
+                if (out == null) {
+                    openForAppend();
+                }
+                writeToken(out, token);
+            } catch (IOException e) {
+                System.err.println("Failed to write token data: " + e.getMessage());
+                closeQuietly();
+                dirty = true;
+            }
+        });
+    }
+
+    /**
+     * Flags the file as out of date with the document
+     */
+    public void markDirty() {
+        dirty = true;
+    }
+
+    /**
+     * Flushes appended records, or rewrites the whole file if it is dirty.
+     * Only the token positions are copied here; the writing happens in the
+     * background.
+     */
+    public void save(TokenStore store, TokenIndex index) {
+        if (!dirty) {
+            EXECUTOR.execute(this::flush);
+            return;
+        }
+
+        // Tokens appended from now on are queued behind the rewrite
+        dirty = false;
+        TokenStore snapshot = store.snapshot();
+        int[] starts = new int[index.size()];
+        int[] ids = new int[index.size()];
+        for (int i = 0; i < starts.length; i++) {
+            starts[i] = index.getStart(i);
+            ids[i] = index.getId(i);
+        }
+        EXECUTOR.execute(() -> rewrite(snapshot, starts, ids));
+    }
+
+    /**
+     * Drops all stored tokens
+     */
+    public void clear() {
+        dirty = false;
+        EXECUTOR.execute(() -> {
+            closeQuietly();
+            file.delete();
+            stringIds.clear();
+            lastStart = 0;
+        });
+    }
+
+    /**
+     * Stops a load still running and queues writing what is left and closing
+     * the file, without waiting for it
+     */
+    public void close() {
+        closing = true;
+        EXECUTOR.execute(this::flush);
+        EXECUTOR.execute(this::closeQuietly);
+    }
+
+    /**
+     * Waits until everything queued so far by any session has been written.
+     * Returns false if that did not happen within the timeout.
+     */
+    public static boolean awaitWrites(long timeoutMillis) {
+        try {
+            EXECUTOR.submit(() -> { }).get(timeoutMillis, TimeUnit.MILLISECONDS);
+            return true;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return false;
+        } catch (ExecutionException | TimeoutException e) {
+            return false;
+        }
+    }
+
+    private void flush() {
+        if (out != null && !dirty) {
+            try {
+                out.flush();
+            } catch (IOException e) {
+                System.err.println("Failed to write token data: " + e.getMessage());
+                closeQuietly();
+                dirty = true;
+            }
+        }
+    }
+
+    private void rewrite(TokenStore store, int[] starts, int[] ids) {
+        closeQuietly();
+        stringIds.clear();
+        lastStart = 0;
+        if (starts.length == 0) {
+            file.delete();
+            return;
+        }
+
+        File tempFile = new File(file.getPath() + ".tmp");
+        try {
+            file.getParentFile().mkdirs();
+            try (DataOutputStream writer = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tempFile)))) {
+                writeHeader(writer);
+                for (int i = 0; i < starts.length; i++) {
+                    writeToken(writer, new Token(store, ids[i], starts[i]));
+                }
+            }
+            Files.move(tempFile.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING);
+        } catch (IOException e) {
+            System.err.println("Failed to save token data: " + e.getMessage());
+            stringIds.clear();
+            tempFile.delete();
+            dirty = true;
+        }
+    }
+
+    private void openForAppend() throws IOException {
+        file.getParentFile().mkdirs();
+        boolean isNew = !file.exists() || file.length() == 0;
+        out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file, true)));
+        if (isNew) {
+            stringIds.clear();
+            lastStart = 0;
+            writeHeader(out);
+        }
+    }
+
+    private void writeHeader(DataOutputStream writer) throws IOException {
+        writer.writeInt(MAGIC);
+        writer.writeByte(VERSION);
+    }
+
+    private void writeToken(DataOutputStream writer, Token token) throws IOException {
+        int textId = defineString(writer, token.text);
+        int[] alternativeIds = new int[token.alternativeTexts.length];
+        for (int i = 0; i < alternativeIds.length; i++) {
+            alternativeIds[i] = defineString(writer, token.alternativeTexts[i]);
+        }
+
+        writer.writeByte(RECORD_TOKEN);
+        writeVarInt(writer, zigZagEncode(token.start - lastStart));
+        writeVarInt(writer, textId);
+        writer.writeByte(token.flags);
+        writer.writeShort(quantize(token.probability));
+        writer.writeByte(alternativeIds.length);
+        for (int i = 0; i < alternativeIds.length; i++) {
+            writeVarInt(writer, alternativeIds[i]);
+            writer.writeShort(quantize(token.alternativeProbabilities[i]));
+        }
+        lastStart = token.start;
+    }
+
+    private int defineString(DataOutputStream writer, String text) throws IOException {
+        Integer existing = stringIds.get(text);
+        if (existing != null) {
+            return existing;
+        }
+        byte[] bytes = text.getBytes(StandardCharsets.UTF_8);
+        writer.writeByte(RECORD_STRING);
+        writeVarInt(writer, bytes.length);
+        writer.write(bytes);
+        int textId = stringIds.size();
+        stringIds.put(text, textId);
+        return textId;
+    }
+
+    private void closeQuietly() {
+        if (out != null) {
+            try {
+                out.close();
+            } catch (IOException e) {
+                System.err.println("Failed to close token data: " + e.getMessage());
+            }
+            out = null;
+        }
+    }
+
+    private static int quantize(double probability) {
+        if (Double.isNaN(probability)) {
+            return QUANTIZED_NAN;
+        }
+        return (int) Math.round(Math.max(0.0, Math.min(1.0, probability)) * QUANTIZED_MAX);
+    }
+
+    private static double dequantize(int value) {
+        return value == QUANTIZED_NAN ? Double.NaN : (double) value / QUANTIZED_MAX;
+    }
+
+    private static int zigZagEncode(int value) {
+        return (value << 1) ^ (value >> 31);
+    }
+
+    private static int zigZagDecode(int value) {
+        return (value >>> 1) ^ -(value & 1);
+    }
+
+    private static void writeVarInt(OutputStream stream, int value) throws IOException {
+        while ((value & ~0x7F) != 0) {
+            stream.write((value & 0x7F) | 0x80);
+            value >>>= 7;
+        }
+        stream.write(value);
+    }
+
+    private static int readVarInt(ByteBuffer buffer) {
+        int value = 0;
+        for (int shift = 0; shift < 32; shift += 7) {
+            byte b = buffer.get();
+            value |= (b & 0x7F) << shift;
+            if ((b & 0x80) == 0) {
+                return value;
+            }
+        }
+        throw new IndexOutOfBoundsException("Malformed varint");
+    }
+
+    /**
+     * What a token record holds, copied out of the store so it can be
+     * written on the background thread
+     */
+    private static class Token {
+        final int start;
+        final String text;
+        final int flags;
+        final double probability;
+        final String[] alternativeTexts;
+        final double[] alternativeProbabilities;
+
+        Token(TokenStore store, int id, int start) {
+            this.start = start;
+            this.text = store.getText(id);
+            boolean prompt = store.isPromptToken(id);
+            this.flags = prompt ? FLAG_PROMPT | (store.isPromptStripe(id) ? FLAG_STRIPE : 0) : 0;
+            this.probability = prompt ? Double.NaN : store.getProbability(id);
+            int count = store.getAlternativeCount(id);
+            this.alternativeTexts = new String[count];
+            this.alternativeProbabilities = new double[count];
+            for (int i = 0; i < count; i++) {
+                alternativeTexts[i] = store.getAlternativeText(id, i);
+                alternativeProbabilities[i] = store.getAlternativeProbability(id, i);
+            }
+        }
+    }
+}
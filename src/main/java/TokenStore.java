@@ -0,0 +1,439 @@
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Columnar storage for token metadata.
+ * Each token is identified by the id returned when it is added and costs a
+ * handful of primitive slots: its probability, an interned text id, flags
+ * and a reference into a shared pool of alternatives. Alternatives are kept
+ * as flat text-id / probability columns that point into the same string
+ * table, so a repeated token string is stored only once.
+ * <p>
+ * All columns grow in fixed-size chunks, so growing never copies the data
+ * that is already stored.
+ * <p>
+ * Running sums of probability, log-probability and alternative entropy are
+ * kept per token, so statistics over any run of consecutive ids are a
+ * subtraction of two prefix values. The lowest probability comes from a
+ * sparse table over per-block minima: the whole blocks of a range are
+ * covered by two overlapping power-of-two spans, and only the partial
+ * blocks at the ends are scanned, so the cost does not depend on the length
+ * of the range.
+ */
+public class TokenStore {
+
+    /** Probability value used for prompt tokens */
+    public static final double PROMPT_PROBABILITY = -1.0;
+
+    private static final int CHUNK_SHIFT = 12;
+    private static final int CHUNK_SIZE = 1 << CHUNK_SHIFT;
+    private static final int CHUNK_MASK = CHUNK_SIZE - 1;
+
+    private static final byte FLAG_PROMPT = 1;
+    private static final byte FLAG_STRIPE = 2;
+
+    /** Tokens per block for the minimum-probability lookup */
+    private static final int BLOCK_SHIFT = 6;
+    private static final int BLOCK_SIZE = 1 << BLOCK_SHIFT;
+
+    /** Lower bound applied before taking the logarithm of a probability */
+    private static final double MIN_LOG_PROBABILITY = 1e-10;
+
+    // Per-token columns
+    private float[][] probabilities = new float[0][];
+    private int[][] textIds = new int[0][];
+    private int[][] alternativeStarts = new int[0][];
+    private byte[][] alternativeCounts = new byte[0][];
+    private byte[][] flags = new byte[0][];
+    private byte[][] ranks = new byte[0][];
+    private int tokenCount = 0;
+
+    // Inclusive prefix sums over scored tokens (generated, with a probability)
+    private double[][] probabilitySums = new double[0][];
+    private double[][] logProbabilitySums = new double[0][];
+    private int[][] scoredCounts = new int[0][];
+    private double[][] entropySums = new double[0][];
+    private int[][] entropyCounts = new int[0][];
+    /** Level k holds the id of the lowest probability in blocks [b, b + 2^k), for completed blocks */
+    private int[][] blockMinimumIds = new int[0][];
+
+    // Alternative pool columns
+    private int[][] alternativeTextIds = new int[0][];
+    private float[][] alternativeProbabilities = new float[0][];
+    private int alternativeCount = 0;
+
+    // Interned token strings
+    private final Map<String, Integer> stringIds = new HashMap<>();
+    private final List<String> strings = new ArrayList<>();
+
+    /**
+     * Adds a prompt token; the prompt index selects its stripe shade
+     */
+    public int addPromptToken(String text, int promptIndex) {
+        byte tokenFlags = (byte) (FLAG_PROMPT | ((promptIndex & 1) == 0 ? FLAG_STRIPE : 0));
+        return addToken(text, PROMPT_PROBABILITY, tokenFlags, null);
+    }
+
+    /**
+     * Adds a generated token with its probability (NaN when unknown) and
+     * alternatives (may be null or empty)
+     */
+    public int addGeneratedToken(String text, double probability, List<TokenManager.TokenAlternative> alternatives) {
+        return addToken(text, probability, (byte) 0, alternatives);
+    }
+
+    public int size() {
+        return tokenCount;
+    }
+
+    public boolean isPromptToken(int id) {
+        return (flags[id >>> CHUNK_SHIFT][id & CHUNK_MASK] & FLAG_PROMPT) != 0;
+    }
+
+    /**
+     * Whether a prompt token uses the first of the two alternating stripe shades
+     */
+    public boolean isPromptStripe(int id) {
+        return (flags[id >>> CHUNK_SHIFT][id & CHUNK_MASK] & FLAG_STRIPE) != 0;
+    }
+
+    public String getText(int id) {
+        return strings.get(textIds[id >>> CHUNK_SHIFT][id & CHUNK_MASK]);
+    }
+
+    public double getProbability(int id) {
+        return probabilities[id >>> CHUNK_SHIFT][id & CHUNK_MASK];
+    }
+
+    public int getAlternativeCount(int id) {
+        return alternativeCounts[id >>> CHUNK_SHIFT][id & CHUNK_MASK] & 0xFF;
+    }
+
+    public String getAlternativeText(int id, int index) {
+        int slot = alternativeSlot(id, index);
+        return strings.get(alternativeTextIds[slot >>> CHUNK_SHIFT][slot & CHUNK_MASK]);
+    }
+
+    public double getAlternativeProbability(int id, int index) {
+        int slot = alternativeSlot(id, index);
+        return alternativeProbabilities[slot >>> CHUNK_SHIFT][slot & CHUNK_MASK];
+    }
+
+    /**
+     * Position of the chosen token among its alternatives, starting at 1,
+     * or 0 if it is not among them
+     */
+    public int getRank(int id) {
+        return ranks[id >>> CHUNK_SHIFT][id & CHUNK_MASK] & 0xFF;
+    }
+
+    /**
+     * Entropy of the token's alternatives in nats, or NaN if it has none
+     */
+    public double getEntropy(int id) {
+        if (prefix(entropyCounts, id) == prefix(entropyCounts, id - 1)) {
+            return Double.NaN;
+        }
+        return prefix(entropySums, id) - prefix(entropySums, id - 1);
+    }
+
+    /**
+     * Whether the token is a generated token with a known probability
+     */
+    public boolean isScored(int id) {
+        return isScored(flags[id >>> CHUNK_SHIFT][id & CHUNK_MASK], getProbability(id));
+    }
+
+    /**
+     * Statistics over the consecutive ids [fromId, toId) in constant time:
+     * prefix differences for the sums, and for the lowest probability two
+     * sparse-table lookups plus at most two partial blocks
+     */
+    public RangeStatistics getStatistics(int fromId, int toId) {
+        RangeStatistics stats = new RangeStatistics();
+        if (toId <= fromId) {
+            return stats;
+        }
+        int last = toId - 1;
+        int before = fromId - 1;
+        stats.tokenCount = prefix(scoredCounts, last) - prefix(scoredCounts, before);
+        stats.probabilitySum = prefix(probabilitySums, last) - prefix(probabilitySums, before);
+        stats.logProbabilitySum = prefix(logProbabilitySums, last) - prefix(logProbabilitySums, before);
+        stats.entropyCount = prefix(entropyCounts, last) - prefix(entropyCounts, before);
+        stats.entropySum = prefix(entropySums, last) - prefix(entropySums, before);
+
+        // Partial blocks at both ends are scanned, whole blocks (always completed) use the sparse table
+        int id = fromId;
+        while (id < toId && (id & (BLOCK_SIZE - 1)) != 0) {
+            stats.offerMinimum(this, id++);
+        }
+        int fromBlock = id >>> BLOCK_SHIFT;
+        int toBlock = toId >>> BLOCK_SHIFT;
+        if (toBlock > fromBlock) {
+            int level = 31 - Integer.numberOfLeadingZeros(toBlock - fromBlock);
+            offerMinimumId(stats, blockMinimumIds[level][fromBlock]);
+            offerMinimumId(stats, blockMinimumIds[level][toBlock - (1 << level)]);
+            id = toBlock << BLOCK_SHIFT;
+        }
+        while (id < toId) {
+            stats.offerMinimum(this, id++);
+        }
+        return stats;
+    }
+
+    /**
+     * Adds a single token to the statistics; used for ranges whose ids are
+     * not consecutive
+     */
+    public void accumulate(RangeStatistics stats, int id) {
+        if (!isScored(id)) {
+            return;
+        }
+        int before = id - 1;
+        stats.tokenCount++;
+        stats.probabilitySum += getProbability(id);
+        stats.logProbabilitySum += prefix(logProbabilitySums, id) - prefix(logProbabilitySums, before);
+        int entropyCount = prefix(entropyCounts, id) - prefix(entropyCounts, before);
+        if (entropyCount > 0) {
+            stats.entropyCount++;
+            stats.entropySum += prefix(entropySums, id) - prefix(entropySums, before);
+        }
+        stats.offerMinimum(this, id);
+    }
+
+    /**
+     * A read-only copy of the tokens added so far, for writing them out on
+     * another thread. The chunks are shared rather than copied: a token is
+     * never changed once added, later tokens go to slots the copy does not
+     * read, and {@link #clear()} replaces the chunks instead of reusing them.
+     * Only the per-token data is copied; range statistics are not.
+     */
+    public TokenStore snapshot() {
+        TokenStore copy = new TokenStore();
+        copy.probabilities = probabilities.clone();
+        copy.textIds = textIds.clone();
+        copy.alternativeStarts = alternativeStarts.clone();
+        copy.alternativeCounts = alternativeCounts.clone();
+        copy.flags = flags.clone();
+        copy.ranks = ranks.clone();
+        copy.tokenCount = tokenCount;
+        copy.alternativeTextIds = alternativeTextIds.clone();
+        copy.alternativeProbabilities = alternativeProbabilities.clone();
+        copy.alternativeCount = alternativeCount;
+        copy.strings.addAll(strings);
+        return copy;
+    }
+
+    public void clear() {
+        probabilities = new float[0][];
+        textIds = new int[0][];
+        alternativeStarts = new int[0][];
+        alternativeCounts = new byte[0][];
+        flags = new byte[0][];
+        ranks = new byte[0][];
+        tokenCount = 0;
+        probabilitySums = new double[0][];
+        logProbabilitySums = new double[0][];
+        scoredCounts = new int[0][];
+        entropySums = new double[0][];
+        entropyCounts = new int[0][];
+        blockMinimumIds = new int[0][];
+        alternativeTextIds = new int[0][];
+        alternativeProbabilities = new float[0][];
+        alternativeCount = 0;
+        stringIds.clear();
+        strings.clear();
+    }
+
+    private int addToken(String text, double probability, byte tokenFlags, List<TokenManager.TokenAlternative> alternatives) {
+        int id = tokenCount;
+        int chunk = id >>> CHUNK_SHIFT;
+        if (chunk == probabilities.length) {
+            probabilities = Arrays.copyOf(probabilities, chunk + 1);
+            probabilities[chunk] = new float[CHUNK_SIZE];
+            textIds = Arrays.copyOf(textIds, chunk + 1);
+            textIds[chunk] = new int[CHUNK_SIZE];
+            alternativeStarts = Arrays.copyOf(alternativeStarts, chunk + 1);
+            alternativeStarts[chunk] = new int[CHUNK_SIZE];
+            alternativeCounts = Arrays.copyOf(alternativeCounts, chunk + 1);
+            alternativeCounts[chunk] = new byte[CHUNK_SIZE];
+            flags = Arrays.copyOf(flags, chunk + 1);
+            flags[chunk] = new byte[CHUNK_SIZE];
+            ranks = Arrays.copyOf(ranks, chunk + 1);
+            ranks[chunk] = new byte[CHUNK_SIZE];
+            probabilitySums = Arrays.copyOf(probabilitySums, chunk + 1);
+            probabilitySums[chunk] = new double[CHUNK_SIZE];
+            logProbabilitySums = Arrays.copyOf(logProbabilitySums, chunk + 1);
+            logProbabilitySums[chunk] = new double[CHUNK_SIZE];
+            scoredCounts = Arrays.copyOf(scoredCounts, chunk + 1);
+            scoredCounts[chunk] = new int[CHUNK_SIZE];
+            entropySums = Arrays.copyOf(entropySums, chunk + 1);
+            entropySums[chunk] = new double[CHUNK_SIZE];
+            entropyCounts = Arrays.copyOf(entropyCounts, chunk + 1);
+            entropyCounts[chunk] = new int[CHUNK_SIZE];
+        }
+
+        int slot = id & CHUNK_MASK;
+        probabilities[chunk][slot] = (float) probability;
+        textIds[chunk][slot] = intern(text);
+        flags[chunk][slot] = tokenFlags;
+        alternativeStarts[chunk][slot] = alternativeCount;
+
+        int count = alternatives == null ? 0 : Math.min(alternatives.size(), 0xFF);
+        alternativeCounts[chunk][slot] = (byte) count;
+        double entropy = 0.0;
+        int rank = 0;
+        for (int i = 0; i < count; i++) {
+            TokenManager.TokenAlternative alternative = alternatives.get(i);
+            addAlternative(intern(alternative.token), (float) alternative.probability);
+            if (rank == 0 && alternative.token.equals(text)) {
+                rank = i + 1;
+            }
+            if (alternative.probability > 0) {
+                entropy -= alternative.probability * Math.log(alternative.probability);
+            }
+        }
+
+        ranks[chunk][slot] = (byte) rank;
+
+        boolean scored = isScored(tokenFlags, probability);
+        boolean hasEntropy = scored && count > 0;
+        int previous = id - 1;
+        probabilitySums[chunk][slot] = prefix(probabilitySums, previous) + (scored ? probability : 0.0);
+        logProbabilitySums[chunk][slot] = prefix(logProbabilitySums, previous)
+                + (scored ? Math.log(Math.max(probability, MIN_LOG_PROBABILITY)) : 0.0);
+        scoredCounts[chunk][slot] = prefix(scoredCounts, previous) + (scored ? 1 : 0);
+        entropySums[chunk][slot] = prefix(entropySums, previous) + (hasEntropy ? entropy : 0.0);
+        entropyCounts[chunk][slot] = prefix(entropyCounts, previous) + (hasEntropy ? 1 : 0);
+        updateBlockMinimum(id, scored);
+
+        tokenCount++;
+        return id;
+    }
+
+    private void addAlternative(int textId, float probability) {
+        int chunk = alternativeCount >>> CHUNK_SHIFT;
+        if (chunk == alternativeTextIds.length) {
+            alternativeTextIds = Arrays.copyOf(alternativeTextIds, chunk + 1);
+            alternativeTextIds[chunk] = new int[CHUNK_SIZE];
+            alternativeProbabilities = Arrays.copyOf(alternativeProbabilities, chunk + 1);
+            alternativeProbabilities[chunk] = new float[CHUNK_SIZE];
+        }
+        alternativeTextIds[chunk][alternativeCount & CHUNK_MASK] = textId;
+        alternativeProbabilities[chunk][alternativeCount & CHUNK_MASK] = probability;
+        alternativeCount++;
+    }
+
+    private void updateBlockMinimum(int id, boolean scored) {
+        int block = id >>> BLOCK_SHIFT;
+        if (blockMinimumIds.length == 0) {
+            blockMinimumIds = new int[][] {new int[16]};
+        }
+        if (block == blockMinimumIds[0].length) {
+            for (int level = 0; level < blockMinimumIds.length; level++) {
+                blockMinimumIds[level] = Arrays.copyOf(blockMinimumIds[level], block * 2);
+            }
+        }
+        if ((id & (BLOCK_SIZE - 1)) == 0) {
+            blockMinimumIds[0][block] = -1;
+        }
+        if (scored) {
+            blockMinimumIds[0][block] = lowerProbability(blockMinimumIds[0][block], id);
+        }
+
+        // Once a block is complete, fill in the spans of each level that end with it
+        if ((id & (BLOCK_SIZE - 1)) == BLOCK_SIZE - 1) {
+            for (int level = 1; (1 << level) <= block + 1; level++) {
+                if (level == blockMinimumIds.length) {
+                    blockMinimumIds = Arrays.copyOf(blockMinimumIds, level + 1);
+                    blockMinimumIds[level] = new int[blockMinimumIds[0].length];
+                }
+                int first = block - (1 << level) + 1;
+                blockMinimumIds[level][first] = lowerProbability(blockMinimumIds[level - 1][first],
+                    blockMinimumIds[level - 1][first + (1 << (level - 1))]);
+            }
+        }
+    }
+
+    /**
+     * Of two token ids (-1 for none), the one with the lower probability
+     */
+    private int lowerProbability(int first, int second) {
+        if (first < 0) {
+            return second;
+        }
+        if (second < 0) {
+            return first;
+        }
+        return getProbability(second) < getProbability(first) ? second : first;
+    }
+
+    private void offerMinimumId(RangeStatistics stats, int id) {
+        if (id >= 0) {
+            stats.offerMinimum(this, id);
+        }
+    }
+
+    private static boolean isScored(byte tokenFlags, double probability) {
+        return (tokenFlags & FLAG_PROMPT) == 0 && !Double.isNaN(probability);
+    }
+
+    private static double prefix(double[][] column, int id) {
+        return id < 0 ? 0.0 : column[id >>> CHUNK_SHIFT][id & CHUNK_MASK];
+    }
+
+    private static int prefix(int[][] column, int id) {
+        return id < 0 ? 0 : column[id >>> CHUNK_SHIFT][id & CHUNK_MASK];
+    }
+
+    private int alternativeSlot(int id, int index) {
+        return alternativeStarts[id >>> CHUNK_SHIFT][id & CHUNK_MASK] + index;
+    }
+
+    private int intern(String text) {
+        Integer existing = stringIds.get(text);
+        if (existing != null) {
+            return existing;
+        }
+        int textId = strings.size();
+        strings.add(text);
+        stringIds.put(text, textId);
+        return textId;
+    }
+
+    /**
+     * Aggregated probability statistics over a range of generated tokens
+     */
+    public static class RangeStatistics {
+        private int tokenCount = 0;
+        private double probabilitySum = 0.0;
+        private double logProbabilitySum = 0.0;
+        private int entropyCount = 0;
+        private double entropySum = 0.0;
+        private int minimumId = -1;
+        private double minimumProbability = Double.NaN;
+        private String minimumText;
+
+        private void offerMinimum(TokenStore store, int id) {
+            if (!store.isScored(id)) {
+                return;
+            }
+            double probability = store.getProbability(id);
+            if (minimumId < 0 || probability < minimumProbability) {
+                minimumId = id;
+                minimumProbability = probability;
+                minimumText = store.getText(id);
+            }
+        }
+
+        public int getTokenCount() { return tokenCount; }
+        public double getMeanProbability() { return tokenCount == 0 ? Double.NaN : probabilitySum / tokenCount; }
+        public double getPerplexity() { return tokenCount == 0 ? Double.NaN : Math.exp(-logProbabilitySum / tokenCount); }
+        public double getMeanEntropy() { return entropyCount == 0 ? Double.NaN : entropySum / entropyCount; }
+        public double getMinimumProbability() { return minimumProbability; }
+        public String getMinimumText() { return minimumText; }
+    }
+}
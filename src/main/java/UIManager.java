@@ -36,14 +36,14 @@ public class UIManager {
     private void createSessionGroup() {
         Group sessionGroup = new Group(app.getShell(), SWT.NONE);
         sessionGroup.setText("Session Management");
-        sessionGroup.setLayout(new GridLayout(8, false));
+        sessionGroup.setLayout(new GridLayout(10, false));
         sessionGroup.setLayoutData(new GridData(SWT.FILL, SWT.TOP, true, false));
         
-        // Session dropdown
+        // Session picker, with search over session names and text
         new Label(sessionGroup, SWT.NONE).setText("Current Session:");
-        Combo sessionCombo = new Combo(sessionGroup, SWT.READ_ONLY);
-        sessionCombo.setLayoutData(new GridData(SWT.FILL, SWT.CENTER, true, false));
-        app.setSessionCombo(sessionCombo);
+        SessionPicker sessionPicker = new SessionPicker(sessionGroup);
+        sessionPicker.setLayoutData(new GridData(SWT.FILL, SWT.CENTER, true, false));
+        app.setSessionPicker(sessionPicker);
         
         // Session management buttons
         Button newSessionButton = new Button(sessionGroup, SWT.PUSH);
@@ -68,7 +68,16 @@ public class UIManager {
 
         Button exportSessionButton = new Button(sessionGroup, SWT.PUSH);
         exportSessionButton.setText("Export");
-        app.setExportSessionButton(exportSessionButton);        
+        app.setExportSessionButton(exportSessionButton);
+        
+        // All sessions at once, as a zip archive
+        Button importAllButton = new Button(sessionGroup, SWT.PUSH);
+        importAllButton.setText("Import All");
+        app.setImportAllButton(importAllButton);
+        
+        Button exportAllButton = new Button(sessionGroup, SWT.PUSH);
+        exportAllButton.setText("Export All");
+        app.setExportAllButton(exportAllButton);
     }
     
     private void createModelSettingsGroup() {
@@ -162,7 +171,7 @@ public class UIManager {
     
     private void createControlButtons() {
         Composite buttonComposite = new Composite(app.getShell(), SWT.NONE);
-        buttonComposite.setLayout(new GridLayout(3, false));
+        buttonComposite.setLayout(new GridLayout(4, false));
         buttonComposite.setLayoutData(new GridData(SWT.FILL, SWT.TOP, true, false));
         
         Button generateButton = new Button(buttonComposite, SWT.PUSH);
@@ -181,6 +190,12 @@ public class UIManager {
         colorToggleButton.setSelection(true);
         colorToggleButton.setLayoutData(new GridData(SWT.FILL, SWT.CENTER, true, false));
         app.setColorToggleButton(colorToggleButton);
+        
+        Combo renderModeCombo = new Combo(buttonComposite, SWT.READ_ONLY);
+        renderModeCombo.setItems(Constants.RENDER_MODE_NAMES);
+        renderModeCombo.select(Constants.RENDER_MODE_PROBABILITY);
+        renderModeCombo.setToolTipText("What the token colors show");
+        app.setRenderModeCombo(renderModeCombo);
     }
     
     private void createStatusBar() {
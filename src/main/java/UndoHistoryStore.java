@@ -0,0 +1,200 @@
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+/**
+ * Keeps the undo history of one session on disk, so it survives session
+ * switches and restarts while only the active session's history is held in
+ * memory.
+ * <p>
+ * The file is an append-only log of snapshots taken by
+ * {@link StyledTextUndoManager#snapshotHistory}: each save appends the
+ * changes that are new since the last save plus a small record of the stack
+ * state. Once the log has grown well past its size after the last full write,
+ * it is rewritten with only the live changes.
+ * <p>
+ * Snapshots are written on one background thread shared by all sessions.
+ * Loading waits for the writes still queued for the same file.
+ */
+public class UndoHistoryStore {
+
+    private static final int MAGIC = 0x4D4B5548; // "MKUH"
+    private static final int VERSION = 1;
+
+    private static final ExecutorService EXECUTOR = Executors.newSingleThreadExecutor(r -> {
+        Thread thread = new Thread(r, "undo-history");
+        thread.setDaemon(true);
+        return thread;
+    });
+    /** The last write queued for each file */
+    private static final Map<File, Future<?>> LAST_WRITES = new ConcurrentHashMap<>();
+
+    private final File file;
+    /** Length of the file right after it was last written in full */
+    private volatile long compactedLength = 0;
+    /** Length of the file after the last write, or 0 if there is none */
+    private volatile long fileLength = 0;
+    /** Set when a write failed, so the log may miss changes and must be written in full */
+    private volatile boolean needsFullWrite = false;
+
+    public UndoHistoryStore(String sessionId) {
+        this.file = getFile(sessionId);
+    }
+
+    /**
+     * Location of the undo history file for a session
+     */
+    public static File getFile(String sessionId) {
+        File undoDir = new File(new File(System.getProperty("user.home"), Constants.MIKUPAD_DIR_NAME),
+            Constants.UNDO_DIR_NAME);
+        return new File(undoDir, sessionId + Constants.UNDO_FILE_EXTENSION);
+    }
+
+    /**
+     * Queues deleting the undo history file of a session behind the writes already queued
+     */
+    public static void delete(String sessionId) {
+        File file = getFile(sessionId);
+        LAST_WRITES.put(file, EXECUTOR.submit(file::delete));
+    }
+
+    /**
+     * Queues copying the undo history file of a session behind the writes already queued
+     */
+    public static void copy(String fromSessionId, String toSessionId) {
+        File source = getFile(fromSessionId);
+        File target = getFile(toSessionId);
+        LAST_WRITES.put(target, EXECUTOR.submit(() -> {
+            if (source.exists()) {
+                try {
+                    Files.copy(source.toPath(), target.toPath(), StandardCopyOption.REPLACE_EXISTING);
+                } catch (IOException e) {
+                    System.err.println("Failed to copy " + source.getName() + ": " + e.getMessage());
+                }
+            }
+        }));
+    }
+
+    /**
+     * Replaces the undo manager's history with the saved one. A history that
+     * does not match the document text is discarded.
+     */
+    public void load(StyledTextUndoManager undoManager, String documentText) {
+        undoManager.reset();
+        awaitLastWrite();
+        if (!file.exists()) {
+            return;
+        }
+
+        boolean matches = false;
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)))) {
+            if (in.readInt() == MAGIC && in.readByte() == VERSION) {
+                matches = undoManager.readHistory(in, documentText);
+            }
+        } catch (IOException e) {
+            System.err.println("Failed to load undo history: " + e.getMessage());
+        }
+
+        if (matches) {
+            compactedLength = fileLength = file.length();
+        } else {
+            System.err.println("Discarding undo history that does not match the session text: " + file);
+            file.delete();
+        }
+    }
+
+    /**
+     * Queues appending the changes made since the last save, or rewriting
+     * the log when it has grown too large. Nothing is written while a
+     * generation is still folding changes into one compound change.
+     */
+    public void save(StyledTextUndoManager undoManager, String documentText) {
+        if (undoManager.isInCompoundChange()) {
+            return;
+        }
+
+        boolean full = needsFullWrite || fileLength == 0
+            || fileLength > compactedLength * Constants.UNDO_LOG_COMPACT_FACTOR + Constants.UNDO_LOG_COMPACT_SLACK_BYTES;
+        needsFullWrite = false;
+        StyledTextUndoManager.HistorySnapshot snapshot = undoManager.snapshotHistory(documentText, full);
+        LAST_WRITES.put(file, EXECUTOR.submit(() -> write(snapshot, full)));
+    }
+
+    /**
+     * Waits until everything queued so far by any session has been written.
+     * Returns false if that did not happen within the timeout.
+     */
+    public static boolean awaitWrites(long timeoutMillis) {
+        try {
+            EXECUTOR.submit(() -> { }).get(timeoutMillis, TimeUnit.MILLISECONDS);
+            return true;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return false;
+        } catch (ExecutionException | TimeoutException e) {
+            return false;
+        }
+    }
+
+    private void awaitLastWrite() {
+        Future<?> lastWrite = LAST_WRITES.remove(file);
+        if (lastWrite == null) {
+            return;
+        }
+        try {
+            lastWrite.get(Constants.UNDO_WRITE_TIMEOUT_MS, TimeUnit.MILLISECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } catch (ExecutionException e) {
+            System.err.println("Failed to save undo history: " + e.getCause());
+        } catch (TimeoutException e) {
+            System.err.println("Timed out writing undo history: " + file);
+        }
+    }
+
+    private void write(StyledTextUndoManager.HistorySnapshot snapshot, boolean full) {
+        try {
+            if (full) {
+                writeFull(snapshot);
+            } else if (!needsFullWrite && file.exists()) {
+                try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file, true)))) {
+                    snapshot.write(out);
+                }
+                fileLength = file.length();
+            } else {
+                // Records before this one are missing, so appending would leave a log that cannot be replayed
+                needsFullWrite = true;
+            }
+        } catch (IOException e) {
+            System.err.println("Failed to save undo history: " + e.getMessage());
+            needsFullWrite = true;
+        }
+    }
+
+    private void writeFull(StyledTextUndoManager.HistorySnapshot snapshot) throws IOException {
+        file.getParentFile().mkdirs();
+        File tempFile = new File(file.getPath() + ".tmp");
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tempFile)))) {
+            out.writeInt(MAGIC);
+            out.writeByte(VERSION);
+            snapshot.write(out);
+        }
+        Files.move(tempFile.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING);
+        compactedLength = fileLength = file.length();
+    }
+}
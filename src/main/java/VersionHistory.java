@@ -0,0 +1,183 @@
+import org.eclipse.swt.custom.ExtendedModifyEvent;
+import org.eclipse.swt.custom.ExtendedModifyListener;
+
+import java.io.IOException;
+import java.time.LocalDateTime;
+import java.time.format.DateTimeFormatter;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Keeps versions of the prompt text taken at generation boundaries.
+ * The text is mirrored into a {@link Rope} as it is edited; a version is just
+ * a reference to the rope at that moment, and the ropes share everything an
+ * edit did not touch. Restoring a version flattens its rope once.
+ * <p>
+ * Versions are also written to the session's {@link VersionStore}, as the
+ * edits collected since the previous version, so they survive session
+ * switches and restarts. Versions read back from the store have no rope and
+ * are rebuilt from the store when restored. The store writes in the
+ * background, so a generation only hands it the rope and the edits.
+ */
+public class VersionHistory {
+
+    private static final DateTimeFormatter TIME_FORMAT = DateTimeFormatter.ofPattern("HH:mm:ss");
+    private static final Pattern GENERATION_NUMBER = Pattern.compile("generation #(\\d+)");
+
+    private SimpleMikuPad app;
+    private Rope document = Rope.EMPTY;
+    private List<Version> versions = new ArrayList<>();
+    private int generationCount = 0;
+    private VersionStore store;
+    /** Edits since the last stored version, or null if they are not known (the next version is a keyframe) */
+    private List<VersionStore.Edit> edits;
+    private long editedChars = 0;
+
+    public VersionHistory(SimpleMikuPad app) {
+        this.app = app;
+    }
+
+    public void setupEventListeners() {
+        if (app.getPromptText() == null) {
+            return; // UI not ready yet
+        }
+
+        // Mirror every edit into the rope
+        app.getPromptText().addExtendedModifyListener(new ExtendedModifyListener() {
+            @Override
+            public void modifyText(ExtendedModifyEvent e) {
+                String inserted = e.length > 0 ? app.getPromptText().getTextRange(e.start, e.length) : "";
+                document = document.replace(e.start, e.start + e.replacedText.length(), inserted);
+                recordEdit(e.start, e.replacedText.length(), inserted);
+            }
+        });
+        document = Rope.of(app.getPromptText().getText());
+    }
+
+    /**
+     * Switches to the versions of a session, starting from the current prompt text
+     */
+    public void reset(String sessionId) {
+        document = Rope.of(app.getPromptText().getText());
+        versions.clear();
+        generationCount = 0;
+        store = new VersionStore(sessionId);
+        for (VersionStore.Entry entry : store.load()) {
+            versions.add(new Version(entry.getLabel(), null, entry.getTextLength()));
+            // Numbering continues after the stored versions, so labels stay unique
+            Matcher matcher = GENERATION_NUMBER.matcher(entry.getLabel());
+            if (matcher.find()) {
+                generationCount = Math.max(generationCount, Integer.parseInt(matcher.group(1)));
+            }
+        }
+        // The text may have changed since the last stored version, so the next one is stored whole
+        edits = null;
+    }
+
+    /**
+     * Records the text before a generation starts
+     */
+    public void beforeGeneration() {
+        generationCount++;
+        addVersion("Before generation #" + generationCount);
+    }
+
+    /**
+     * Records the text after a generation finished
+     */
+    public void afterGeneration() {
+        addVersion("After generation #" + generationCount);
+    }
+
+    public List<Version> getVersions() {
+        return Collections.unmodifiableList(versions);
+    }
+
+    /**
+     * Replaces the prompt with a version as a single undoable edit
+     */
+    public void restore(Version version) {
+        if (app.getPromptText().isDisposed()) return;
+
+        String text;
+        if (version.text != null) {
+            text = version.text.toString();
+        } else {
+            try {
+                text = store.materialize(versions.indexOf(version));
+            } catch (IOException | RuntimeException e) {
+                app.updateStatus("Failed to restore version: " + e.getMessage());
+                return;
+            }
+        }
+        app.getPromptText().replaceTextRange(0, app.getPromptText().getCharCount(), text);
+        app.updateStatus("Restored: " + version.getLabel());
+    }
+
+    private void recordEdit(int start, int replacedLength, String inserted) {
+        if (edits == null) {
+            return;
+        }
+        editedChars += replacedLength + inserted.length();
+        if (editedChars > document.length()) {
+            // Storing the whole text is smaller now
+            edits = null;
+            return;
+        }
+        if (replacedLength == 0 && !edits.isEmpty()) {
+            // Streamed tokens extend the previous insert
+            VersionStore.Edit last = edits.get(edits.size() - 1);
+            if (last.start + last.text.length() == start) {
+                edits.set(edits.size() - 1, new VersionStore.Edit(last.start, last.replacedLength, last.text + inserted));
+                return;
+            }
+        }
+        edits.add(new VersionStore.Edit(start, replacedLength, inserted));
+    }
+
+    private void addVersion(String label) {
+        // Nothing changed since the last version, so it already covers this one
+        if (!versions.isEmpty() && versions.get(versions.size() - 1).text == document) {
+            return;
+        }
+        Version version = new Version(label + " (" + LocalDateTime.now().format(TIME_FORMAT) + ")", document, document.length());
+        versions.add(version);
+        storeVersion(version);
+        if (versions.size() > Constants.MAX_VERSIONS + Constants.VERSION_KEYFRAME_INTERVAL) {
+            // Trimming rewrites the file, so it is done in batches rather than per version
+            if (store != null) {
+                store.trim(Constants.MAX_VERSIONS);
+            }
+            versions.subList(0, versions.size() - Constants.MAX_VERSIONS).clear();
+        }
+    }
+
+    private void storeVersion(Version version) {
+        if (store == null) {
+            return;
+        }
+        // The list is handed over; edits from now on go to a new one
+        store.append(version.label, version.text, edits);
+        edits = new ArrayList<>();
+        editedChars = 0;
+    }
+
+    public static class Version {
+        private final String label;
+        /** The text, or null for a version read back from the store */
+        private final Rope text;
+        private final int length;
+
+        Version(String label, Rope text, int length) {
+            this.label = label;
+            this.text = text;
+            this.length = length;
+        }
+
+        public String getLabel() { return label; }
+        public int getLength() { return length; }
+    }
+}
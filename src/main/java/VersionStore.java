@@ -0,0 +1,474 @@
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * On-disk versions of one session's prompt, stored as binary deltas.
+ * <p>
+ * The file is a header followed by one record per version. A keyframe record
+ * holds the whole text, deflated. A delta record holds the edits that turn
+ * the previous version into this one, as start / replaced length / inserted
+ * text triples, taken from the edit events rather than from diffing. Every
+ * {@link Constants#VERSION_KEYFRAME_INTERVAL}th record is a keyframe, so
+ * restoring a version replays a bounded number of deltas.
+ * <p>
+ * All file access runs on one background thread shared by all sessions, so
+ * generations never wait for compression or trimming. Reads wait for the
+ * writes queued before them, which keeps record indexes in step with the
+ * versions the caller has added.
+ */
+public class VersionStore {
+
+    private static final int MAGIC = 0x4D4B5653; // "MKVS"
+    private static final int VERSION = 1;
+
+    private static final int RECORD_KEYFRAME = 1;
+    private static final int RECORD_DELTA = 2;
+
+    private static final ExecutorService EXECUTOR = Executors.newSingleThreadExecutor(r -> {
+        Thread thread = new Thread(r, "version-store");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    private final File file;
+    // Only used on the executor thread
+    private final List<Entry> entries = new ArrayList<>();
+    /** Set when a write failed, after which the file no longer matches the caller's versions */
+    private volatile boolean failed = false;
+
+    public VersionStore(String sessionId) {
+        this.file = getFile(sessionId);
+    }
+
+    /**
+     * Location of the versions file for a session
+     */
+    public static File getFile(String sessionId) {
+        File versionsDir = new File(new File(System.getProperty("user.home"), Constants.MIKUPAD_DIR_NAME),
+            Constants.VERSIONS_DIR_NAME);
+        return new File(versionsDir, sessionId + Constants.VERSIONS_FILE_EXTENSION);
+    }
+
+    /**
+     * Deletes a session's versions file after the writes queued for it
+     */
+    public static void delete(String sessionId) {
+        File file = getFile(sessionId);
+        EXECUTOR.execute(file::delete);
+    }
+
+    /**
+     * Copies a session's versions file to another session once the writes
+     * queued for it are done
+     */
+    public static void copy(String fromSessionId, String toSessionId) {
+        File source = getFile(fromSessionId);
+        File target = getFile(toSessionId);
+        EXECUTOR.execute(() -> {
+            if (source.exists()) {
+                try {
+                    Files.copy(source.toPath(), target.toPath(), StandardCopyOption.REPLACE_EXISTING);
+                } catch (IOException e) {
+                    System.err.println("Failed to copy " + source.getName() + ": " + e.getMessage());
+                }
+            }
+        });
+    }
+
+    /**
+     * Waits at most the given time for all queued writes. Returns false on timeout.
+     */
+    public static boolean awaitWrites(long timeoutMillis) {
+        try {
+            EXECUTOR.submit(() -> { }).get(timeoutMillis, TimeUnit.MILLISECONDS);
+            return true;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return false;
+        } catch (ExecutionException | TimeoutException e) {
+            return false;
+        }
+    }
+
+    /**
+     * Reads the version labels, skipping the text, once the writes queued for
+     * the file are done
+     */
+    public List<Entry> load() {
+        try {
+            return afterWrites(() -> new ArrayList<>(readEntries()));
+        } catch (IOException e) {
+            System.err.println("Failed to load versions: " + e.getMessage());
+            failed = true;
+            return new ArrayList<>();
+        }
+    }
+
+    /**
+     * Queues a version: the edits from the previous version, or the whole
+     * text if the edits are null or a keyframe is due. The rope is flattened
+     * and compressed on the writer thread.
+     */
+    public void append(String label, Rope text, List<Edit> edits) {
+        EXECUTOR.execute(() -> {
+            if (failed) {
+                return;
+            }
+            try {
+                if (edits == null || needsKeyframe()) {
+                    appendKeyframe(label, text.toString());
+                } else {
+                    appendDelta(label, text.length(), edits);
+                }
+            } catch (IOException e) {
+                // Later versions are kept in memory only; stored indexes would no longer match the list
+                System.err.println("Failed to store version: " + e.getMessage());
+                failed = true;
+            }
+        });
+    }
+
+    /**
+     * Queues dropping the oldest versions so the given number remain
+     */
+    public void trim(int keep) {
+        EXECUTOR.execute(() -> {
+            if (failed) {
+                return;
+            }
+            try {
+                trimFile(keep);
+            } catch (IOException e) {
+                System.err.println("Failed to trim versions: " + e.getMessage());
+                failed = true;
+            }
+        });
+    }
+
+    /**
+     * Rebuilds the text of a version, waiting for the writes queued before
+     */
+    public String materialize(int index) throws IOException {
+        return afterWrites(() -> {
+            if (failed) {
+                throw new IOException("Versions could not be stored");
+            }
+            return readVersion(index);
+        });
+    }
+
+    /**
+     * Runs a read on the writer thread after the writes queued before it
+     */
+    private static <T> T afterWrites(Callable<T> read) throws IOException {
+        try {
+            return EXECUTOR.submit(read).get(Constants.VERSIONS_WRITE_TIMEOUT_MS, TimeUnit.MILLISECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted waiting for versions");
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof IOException) {
+                throw (IOException) e.getCause();
+            }
+            throw new IOException(e.getCause());
+        } catch (TimeoutException e) {
+            throw new IOException("Timed out waiting for versions to be written");
+        }
+    }
+
+    /**
+     * Reads the version labels and record positions, skipping the text.
+     * A record cut short by a crash is cut off the file.
+     */
+    private List<Entry> readEntries() {
+        entries.clear();
+        if (!file.exists() || file.length() == 0) {
+            return entries;
+        }
+
+        long validLength = 0;
+        boolean unrecognized = false;
+        try (RandomAccessFile in = new RandomAccessFile(file, "r")) {
+            if (in.readInt() != MAGIC || in.readByte() != VERSION) {
+                unrecognized = true;
+                return entries;
+            }
+            validLength = in.getFilePointer();
+            while (in.getFilePointer() < in.length()) {
+                long offset = in.getFilePointer();
+                int type = in.readByte();
+                String label = in.readUTF();
+                int textLength = in.readInt();
+                long end = in.getFilePointer() + 4 + in.readInt();
+                if (end > in.length()) {
+                    throw new EOFException();
+                }
+                in.seek(end);
+                entries.add(new Entry(label, textLength, type == RECORD_KEYFRAME, offset));
+                validLength = end;
+            }
+        } catch (IOException e) {
+            System.err.println("Versions file truncated at " + validLength + ": " + file);
+            truncate(validLength);
+        } finally {
+            // Deleted only once the file is closed
+            if (unrecognized) {
+                System.err.println("Ignoring unrecognized versions file: " + file);
+                file.delete();
+            }
+        }
+        return entries;
+    }
+
+    /**
+     * Whether the next version should be a keyframe to keep restore time bounded
+     */
+    private boolean needsKeyframe() {
+        for (int i = entries.size() - 1, deltas = 0; i >= 0; i--, deltas++) {
+            if (entries.get(i).keyframe) {
+                return deltas + 1 >= Constants.VERSION_KEYFRAME_INTERVAL;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Appends a version holding the whole text
+     */
+    private void appendKeyframe(String label, String text) throws IOException {
+        append(RECORD_KEYFRAME, label, text.length(), deflate(text.getBytes(StandardCharsets.UTF_8)));
+    }
+
+    /**
+     * Appends a version as the edits from the previous version
+     */
+    private void appendDelta(String label, int textLength, List<Edit> edits) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(bytes);
+        writeVarInt(out, edits.size());
+        for (Edit edit : edits) {
+            byte[] text = edit.text.getBytes(StandardCharsets.UTF_8);
+            writeVarInt(out, edit.start);
+            writeVarInt(out, edit.replacedLength);
+            writeVarInt(out, text.length);
+            out.write(text);
+        }
+        append(RECORD_DELTA, label, textLength, bytes.toByteArray());
+    }
+
+    /**
+     * Rebuilds the text of a version from the nearest keyframe before it
+     */
+    private String readVersion(int index) throws IOException {
+        int keyframe = index;
+        while (keyframe >= 0 && !entries.get(keyframe).keyframe) {
+            keyframe--;
+        }
+        if (keyframe < 0) {
+            throw new IOException("No keyframe before version " + index);
+        }
+
+        try (RandomAccessFile in = new RandomAccessFile(file, "r")) {
+            StringBuilder text = new StringBuilder(new String(inflate(readPayload(in, entries.get(keyframe))), StandardCharsets.UTF_8));
+            for (int i = keyframe + 1; i <= index; i++) {
+                DataInputStream delta = new DataInputStream(new ByteArrayInputStream(readPayload(in, entries.get(i))));
+                int count = readVarInt(delta);
+                for (int j = 0; j < count; j++) {
+                    int start = readVarInt(delta);
+                    int replacedLength = readVarInt(delta);
+                    byte[] inserted = new byte[readVarInt(delta)];
+                    delta.readFully(inserted);
+                    text.replace(start, start + replacedLength, new String(inserted, StandardCharsets.UTF_8));
+                }
+            }
+            return text.toString();
+        }
+    }
+
+    /**
+     * Drops the oldest versions so the given number remain. The first one
+     * kept is rewritten as a keyframe; the rest are copied as they are.
+     */
+    private void trimFile(int keep) throws IOException {
+        if (entries.size() <= keep) {
+            return;
+        }
+        int first = entries.size() - keep;
+        String firstText = readVersion(first);
+
+        File tempFile = new File(file.getPath() + ".tmp");
+        List<Entry> kept = new ArrayList<>();
+        try (RandomAccessFile in = new RandomAccessFile(file, "r");
+             DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tempFile)))) {
+            out.writeInt(MAGIC);
+            out.writeByte(VERSION);
+            long offset = 5;
+            offset += writeRecord(out, RECORD_KEYFRAME, entries.get(first).label, firstText.length(),
+                deflate(firstText.getBytes(StandardCharsets.UTF_8)));
+            kept.add(new Entry(entries.get(first).label, firstText.length(), true, 5));
+            for (int i = first + 1; i < entries.size(); i++) {
+                Entry entry = entries.get(i);
+                kept.add(new Entry(entry.label, entry.textLength, entry.keyframe, offset));
+                offset += writeRecord(out, entry.keyframe ? RECORD_KEYFRAME : RECORD_DELTA, entry.label,
+                    entry.textLength, readPayload(in, entry));
+            }
+        }
+        Files.move(tempFile.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING);
+        entries.clear();
+        entries.addAll(kept);
+    }
+
+    private void append(int type, String label, int textLength, byte[] payload) throws IOException {
+        file.getParentFile().mkdirs();
+        boolean isNew = !file.exists() || file.length() == 0;
+        long offset;
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file, true)))) {
+            if (isNew) {
+                out.writeInt(MAGIC);
+                out.writeByte(VERSION);
+                entries.clear();
+            }
+            offset = isNew ? 5 : file.length();
+            writeRecord(out, type, label, textLength, payload);
+        }
+        entries.add(new Entry(label, textLength, type == RECORD_KEYFRAME, offset));
+    }
+
+    private static int writeRecord(DataOutputStream out, int type, String label, int textLength, byte[] payload) throws IOException {
+        int before = out.size();
+        out.writeByte(type);
+        out.writeUTF(label);
+        out.writeInt(textLength);
+        out.writeInt(payload.length);
+        out.write(payload);
+        return out.size() - before;
+    }
+
+    private static byte[] readPayload(RandomAccessFile in, Entry entry) throws IOException {
+        in.seek(entry.offset + 1);
+        in.readUTF();
+        in.readInt();
+        byte[] payload = new byte[in.readInt()];
+        in.readFully(payload);
+        return payload;
+    }
+
+    private void truncate(long length) {
+        try (RandomAccessFile raf = new RandomAccessFile(file, "rw")) {
+            raf.setLength(length);
+        } catch (IOException e) {
+            System.err.println("Failed to repair versions file: " + e.getMessage());
+        }
+    }
+
+    private static byte[] deflate(byte[] data) {
+        Deflater deflater = new Deflater();
+        deflater.setInput(data);
+        deflater.finish();
+        ByteArrayOutputStream out = new ByteArrayOutputStream(Math.max(64, data.length / 4));
+        byte[] buffer = new byte[8192];
+        while (!deflater.finished()) {
+            out.write(buffer, 0, deflater.deflate(buffer));
+        }
+        deflater.end();
+        return out.toByteArray();
+    }
+
+    private static byte[] inflate(byte[] data) throws IOException {
+        Inflater inflater = new Inflater();
+        inflater.setInput(data);
+        ByteArrayOutputStream out = new ByteArrayOutputStream(data.length * 4);
+        byte[] buffer = new byte[8192];
+        try {
+            while (!inflater.finished()) {
+                int count = inflater.inflate(buffer);
+                if (count == 0 && (inflater.needsInput() || inflater.needsDictionary())) {
+                    throw new IOException("Keyframe is truncated");
+                }
+                out.write(buffer, 0, count);
+            }
+        } catch (DataFormatException e) {
+            throw new IOException("Keyframe is corrupt", e);
+        } finally {
+            inflater.end();
+        }
+        return out.toByteArray();
+    }
+
+    private static void writeVarInt(DataOutputStream out, int value) throws IOException {
+        while ((value & ~0x7F) != 0) {
+            out.write((value & 0x7F) | 0x80);
+            value >>>= 7;
+        }
+        out.write(value);
+    }
+
+    private static int readVarInt(DataInputStream in) throws IOException {
+        int value = 0;
+        for (int shift = 0; shift < 32; shift += 7) {
+            int b = in.readUnsignedByte();
+            value |= (b & 0x7F) << shift;
+            if ((b & 0x80) == 0) {
+                return value;
+            }
+        }
+        throw new IOException("Malformed varint");
+    }
+
+    /**
+     * A stored version, without its text
+     */
+    public static class Entry {
+        final String label;
+        final int textLength;
+        final boolean keyframe;
+        final long offset;
+
+        Entry(String label, int textLength, boolean keyframe, long offset) {
+            this.label = label;
+            this.textLength = textLength;
+            this.keyframe = keyframe;
+            this.offset = offset;
+        }
+
+        public String getLabel() { return label; }
+        public int getTextLength() { return textLength; }
+    }
+
+    /**
+     * One replacement in a delta
+     */
+    public static class Edit {
+        final int start;
+        final int replacedLength;
+        final String text;
+
+        public Edit(int start, int replacedLength, String text) {
+            this.start = start;
+            this.replacedLength = replacedLength;
+            this.text = text;
+        }
+    }
+}